@@ -0,0 +1,61 @@
+package com.gr.common.rest.messagebox.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import java.util.concurrent.TimeUnit;
+
+// Success path cost of FaultTolerantAspect.around and InboxAspect.around against a plain call on the same proxy.
+// The inbox variant includes publishing its events, persisting them happens on the inbox executor.
+// Run with: mvn -Pbenchmark test-compile exec:exec -Djmh.args=AspectOverheadBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AspectOverheadBenchmark {
+
+    private ConfigurableApplicationContext context;
+
+    private BenchmarkTargets targets;
+
+    private long sequence;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = BenchmarkApplication.start();
+        targets = context.getBean(BenchmarkTargets.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public String plainCall() {
+        return targets.plainCall(BenchmarkTargets.Payload.of(sequence++));
+    }
+
+    @Benchmark
+    public String faultTolerantAround() {
+        return targets.faultTolerantCall(BenchmarkTargets.Payload.of(sequence++));
+    }
+
+    @Benchmark
+    public String inboxAround() {
+        return targets.inboxCall(BenchmarkTargets.Payload.of(sequence++));
+    }
+}
@@ -0,0 +1,90 @@
+package com.gr.common.rest.messagebox.benchmark;
+
+import org.springframework.boot.Banner;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+// Library context on an in-memory H2 database, the way a consuming service wires it up
+@SpringBootApplication(scanBasePackages = "com.gr.common.rest.messagebox")
+@EntityScan("com.gr.common.rest.messagebox.entity")
+@EnableJpaRepositories("com.gr.common.rest.messagebox.repository")
+@Import(BenchmarkTargets.class)
+public class BenchmarkApplication {
+
+    static final String METHOD_NAME = "benchmarkMethod";
+
+    static ConfigurableApplicationContext start(String... properties) {
+        Map<String, Object> defaults = new HashMap<>();
+        defaults.put("spring.datasource.url", "jdbc:h2:mem:" + UUID.randomUUID() + ";DB_CLOSE_DELAY=-1");
+        defaults.put("spring.jpa.hibernate.ddl-auto", "create");
+        defaults.put("spring.jpa.open-in-view", "false");
+        defaults.put("spring.jpa.properties.hibernate.order_inserts", "true");
+        defaults.put("logging.level.root", "WARN");
+        defaults.put("resilience4j.retry.maxAttempts", "1");
+        defaults.put("benchmark.target.url", "http://localhost:1");
+        return new SpringApplicationBuilder(BenchmarkApplication.class)
+                .web(WebApplicationType.NONE)
+                .bannerMode(Banner.Mode.OFF)
+                .properties(defaults)
+                .properties(properties)
+                .run();
+    }
+
+    // Writes rows straight through JDBC, every pendingEvery-th row is a pending outbox message
+    static void seedOutbox(DataSource dataSource, int rows, int pendingEvery, String endPointUrl) throws SQLException {
+        try (Connection connection = dataSource.getConnection()) {
+            connection.setAutoCommit(false);
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("delete from rest_message");
+            }
+            try (PreparedStatement insert = connection.prepareStatement("insert into rest_message (id, type, status, retry_count, "
+                    + "end_point_url, http_method, service_method_name, source_service, content, content_type) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)")) {
+                for (int id = 1; id <= rows; id++) {
+                    boolean pending = id % pendingEvery == 0;
+                    insert.setLong(1, id);
+                    insert.setString(2, "OUTBOX");
+                    insert.setString(3, pending ? "FAILURE" : "SUCCESS");
+                    insert.setInt(4, pending ? 0 : 1);
+                    insert.setString(5, endPointUrl);
+                    insert.setString(6, "POST");
+                    insert.setString(7, METHOD_NAME);
+                    insert.setString(8, "EXTERNAL");
+                    insert.setString(9, "{\"id\":" + id + ",\"name\":\"benchmark payload\"}");
+                    insert.setString(10, "JSON");
+                    insert.addBatch();
+                    if (id % 10_000 == 0) {
+                        insert.executeBatch();
+                    }
+                }
+                insert.executeBatch();
+            }
+            try (Statement statement = connection.createStatement()) {
+                // Keep the pooled sequence ahead of the seeded ids
+                statement.execute("alter sequence rest_message_seq restart with " + (rows + 1));
+                // Fresh statistics, otherwise the planner keeps the estimates of the empty table
+                statement.execute("analyze");
+            }
+            connection.commit();
+        }
+    }
+
+    static void clearOutbox(DataSource dataSource) throws SQLException {
+        try (Connection connection = dataSource.getConnection(); Statement statement = connection.createStatement()) {
+            statement.execute("delete from rest_message");
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package com.gr.common.rest.messagebox.benchmark;
+
+import com.gr.common.rest.messagebox.aspect.cricuitbreaker.aspect.RestFaultTolerant;
+import com.gr.common.rest.messagebox.aspect.inboxoutbox.GRInboxPattern;
+import com.gr.common.rest.messagebox.constants.ServiceName;
+import org.springframework.stereotype.Component;
+
+// Advised methods with trivial bodies, so a benchmark measures the advice and not the work
+@Component
+public class BenchmarkTargets {
+
+    @RestFaultTolerant(serviceName = ServiceName.EXTERNAL, methodName = BenchmarkApplication.METHOD_NAME,
+            targetServiceBaseUrlProperty = "benchmark.target.url", targetURI = "/benchmark")
+    public String faultTolerantCall(Payload payload) {
+        return payload.id;
+    }
+
+    @GRInboxPattern(serviceName = ServiceName.EXTERNAL, methodName = BenchmarkApplication.METHOD_NAME)
+    public String inboxCall(Payload payload) {
+        return payload.id;
+    }
+
+    public String plainCall(Payload payload) {
+        return payload.id;
+    }
+
+    public static class Payload {
+        public String id;
+        public String customer;
+        public int quantity;
+        public double amount;
+
+        public static Payload of(long sequence) {
+            Payload payload = new Payload();
+            payload.id = "ORD-" + sequence;
+            payload.customer = "CUST-" + sequence % 1_000;
+            payload.quantity = (int) (sequence % 10) + 1;
+            payload.amount = 19.99 * payload.quantity;
+            return payload;
+        }
+    }
+}
@@ -0,0 +1,127 @@
+package com.gr.common.rest.messagebox.benchmark;
+
+import com.gr.common.rest.messagebox.aspect.cricuitbreaker.aspect.FaultTolerantAspect;
+import com.gr.common.rest.messagebox.constants.GrSystem;
+import com.gr.common.rest.messagebox.constants.HTTPMethod;
+import com.gr.common.rest.messagebox.constants.RestMessageStatus;
+import com.gr.common.rest.messagebox.constants.ServiceName;
+import com.gr.common.rest.messagebox.constants.Type;
+import com.gr.common.rest.messagebox.entity.RestMessage;
+import com.gr.common.rest.messagebox.service.RestMessageService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import javax.sql.DataSource;
+import java.sql.SQLException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Outbox write paths: recoverMessageIncaseOfFallBack capture in both capture modes, and RestMessageService saving
+// rows one transaction at a time versus one batched transaction. Scores are per captured row, captureConcurrent shows
+// the group commit of WRITE_BEHIND with several callers failing at once.
+// Run with: mvn -Pbenchmark test-compile exec:exec -Djmh.args=OutboxCaptureBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OutboxCaptureBenchmark {
+
+    private static final int BATCH = 100;
+
+    @Param({"SYNC", "WRITE_BEHIND"})
+    private String captureMode;
+
+    private ConfigurableApplicationContext context;
+
+    private FaultTolerantAspect faultTolerantAspect;
+
+    private RestMessageService restMessageService;
+
+    private DataSource dataSource;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        context = BenchmarkApplication.start("rest.messagebox.capture.mode=" + captureMode);
+        faultTolerantAspect = context.getBean(FaultTolerantAspect.class);
+        restMessageService = context.getBean(RestMessageService.class);
+        dataSource = context.getBean(DataSource.class);
+    }
+
+    @TearDown(Level.Iteration)
+    public void clear() throws SQLException {
+        BenchmarkApplication.clearOutbox(dataSource);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+    }
+
+    @Benchmark
+    public Object capture() {
+        // Distinct payloads, identical ones would be dropped by the dedup filter
+        return faultTolerantAspect.recoverMessageIncaseOfFallBack(ServiceName.EXTERNAL, BenchmarkApplication.METHOD_NAME,
+                "http://localhost:1/benchmark", BenchmarkTargets.Payload.of(sequence.getAndIncrement()), new IllegalStateException("downstream unavailable"));
+    }
+
+    @Benchmark
+    @Threads(8)
+    public Object captureConcurrent() {
+        return capture();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void saveSingle() {
+        for (RestMessage restMessage : newMessages()) {
+            restMessageService.saveRestMessage(restMessage);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public void saveBatched() {
+        restMessageService.saveRestMessages(newMessages());
+    }
+
+    private List<RestMessage> newMessages() {
+        List<RestMessage> restMessages = new ArrayList<>(BATCH);
+        for (int i = 0; i < BATCH; i++) {
+            restMessages.add(RestMessage.builder()
+                    .content("{\"id\":" + sequence.getAndIncrement() + ",\"name\":\"benchmark payload\"}")
+                    .contentType("JSON")
+                    .endPointUrl("http://localhost:1/benchmark")
+                    .httpMethod(HTTPMethod.POST)
+                    .type(Type.OUTBOX)
+                    .status(RestMessageStatus.FAILURE)
+                    .retryCount(0)
+                    .createDateTime(LocalDateTime.now())
+                    .sourceSystem(GrSystem.GRID2)
+                    .sourceService(ServiceName.EXTERNAL)
+                    .serviceMethodName(BenchmarkApplication.METHOD_NAME)
+                    .build());
+        }
+        return restMessages;
+    }
+}
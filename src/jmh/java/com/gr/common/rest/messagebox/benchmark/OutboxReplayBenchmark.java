@@ -0,0 +1,114 @@
+package com.gr.common.rest.messagebox.benchmark;
+
+import com.gr.common.rest.messagebox.aspect.cricuitbreaker.event.CircuitBreakerEventListener;
+import com.gr.common.rest.messagebox.aspect.cricuitbreaker.event.OutboxReplayEngine;
+import com.gr.common.rest.messagebox.service.RestMessageService;
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.sql.SQLException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+// Replay of a pending outbox against a local stub HTTP server answering 200: the concurrent drain run when a circuit
+// closes and the ordered per method drain of CircuitBreakerEventListener. Scores are per replayed message. With bulk the
+// concurrent drain sends the method's messages as array batches to a bulk endpoint, the ordered drain is unaffected.
+// Run with: mvn -Pbenchmark test-compile exec:exec -Djmh.args=OutboxReplayBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class OutboxReplayBenchmark {
+
+    private static final int MESSAGES = 1_000;
+
+    @Param({"false", "true"})
+    private boolean bulk;
+
+    private HttpServer stub;
+
+    private ExecutorService stubExecutor;
+
+    private ConfigurableApplicationContext context;
+
+    private OutboxReplayEngine outboxReplayEngine;
+
+    private RestMessageService restMessageService;
+
+    private CircuitBreakerEventListener circuitBreakerEventListener;
+
+    private DataSource dataSource;
+
+    private String endPointUrl;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        stub = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 512);
+        stub.createContext("/", exchange -> {
+            try (InputStream body = exchange.getRequestBody()) {
+                while (body.read() >= 0) {
+                    // drain the request
+                }
+            }
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        stubExecutor = Executors.newFixedThreadPool(16);
+        stub.setExecutor(stubExecutor);
+        stub.start();
+        endPointUrl = "http://127.0.0.1:" + stub.getAddress().getPort() + "/ingest";
+
+        String bulkUri = "rest.messagebox.replay.bulk.uri." + BenchmarkApplication.METHOD_NAME + "=" + endPointUrl + "/bulk";
+        context = bulk ? BenchmarkApplication.start(bulkUri) : BenchmarkApplication.start();
+        outboxReplayEngine = context.getBean(OutboxReplayEngine.class);
+        restMessageService = context.getBean(RestMessageService.class);
+        circuitBreakerEventListener = context.getBean(CircuitBreakerEventListener.class);
+        dataSource = context.getBean(DataSource.class);
+    }
+
+    @Setup(Level.Invocation)
+    public void seed() throws SQLException {
+        BenchmarkApplication.seedOutbox(dataSource, MESSAGES, 1, endPointUrl);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        context.close();
+        stub.stop(0);
+        stubExecutor.shutdownNow();
+    }
+
+    // What CircuitBreakerEventListener runs when a circuit closes
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public Long drainOnClose() {
+        return outboxReplayEngine.drain(restMessageService::claimPendingOutboxMessages, false).block();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void drainInOrder() {
+        circuitBreakerEventListener.processOutboxMessagesFirst(BenchmarkApplication.METHOD_NAME);
+    }
+}
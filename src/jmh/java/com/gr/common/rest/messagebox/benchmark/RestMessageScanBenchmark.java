@@ -0,0 +1,128 @@
+package com.gr.common.rest.messagebox.benchmark;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.TimeUnit;
+
+// Scan cost of the outbox replay and dedup lookups on an H2 rest_message table, with and without the
+// indexes declared on RestMessage. Run with: mvn -Pbenchmark test-compile exec:exec -Djmh.args=RestMessageScanBenchmark
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RestMessageScanBenchmark {
+
+    private static final int METHODS = 50;
+
+    @Param({"1000000"})
+    private int rows;
+
+    @Param({"false", "true"})
+    private boolean indexed;
+
+    private Connection connection;
+
+    private PreparedStatement pendingChunk;
+
+    private PreparedStatement dedupLookup;
+
+    private long probe;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:h2:mem:scan" + indexed + ";DB_CLOSE_DELAY=-1;OPTIMIZE_REUSE_RESULTS=0");
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("create table rest_message (id bigint primary key, type varchar(16), status varchar(16), "
+                    + "retry_count int, service_method_name varchar(255), content_hash varchar(64), content clob)");
+            if (indexed) {
+                statement.execute("create index idx_rest_message_type_status_id on rest_message (type, status, id)");
+                statement.execute("create index idx_rest_message_method_hash_status on rest_message (service_method_name, content_hash, status)");
+            }
+        }
+        connection.setAutoCommit(false);
+        try (PreparedStatement insert = connection.prepareStatement("insert into rest_message values (?, ?, ?, ?, ?, ?, ?)")) {
+            for (int id = 1; id <= rows; id++) {
+                // ~1% of the table is still pending, the rest was delivered
+                boolean pending = id % 100 == 0;
+                insert.setLong(1, id);
+                insert.setString(2, "OUTBOX");
+                insert.setString(3, pending ? "FAILURE" : "SUCCESS");
+                insert.setInt(4, pending ? id % 4 : 1);
+                insert.setString(5, "method" + id % METHODS);
+                insert.setString(6, Long.toHexString(id * 0x9E3779B97F4A7C15L));
+                insert.setString(7, "{\"id\":" + id + "}");
+                insert.addBatch();
+                if (id % 10_000 == 0) {
+                    insert.executeBatch();
+                }
+            }
+            insert.executeBatch();
+        }
+        connection.commit();
+
+        // One read per pending status, as RestMessageService issues them
+        pendingChunk = connection.prepareStatement("select id, content from rest_message where type = 'OUTBOX' "
+                + "and status = ? and retry_count <= 3 and id > ? order by type, status, id limit 200");
+        dedupLookup = connection.prepareStatement("select id from rest_message where type = 'OUTBOX' "
+                + "and status in ('NEW', 'FAILURE') and service_method_name = ? and content_hash = ? and retry_count <= 3");
+    }
+
+    @Benchmark
+    public void pendingChunk(Blackhole blackhole) throws SQLException {
+        long afterId = nextProbe();
+        for (String status : new String[]{"NEW", "FAILURE"}) {
+            pendingChunk.setString(1, status);
+            pendingChunk.setLong(2, afterId);
+            try (ResultSet resultSet = pendingChunk.executeQuery()) {
+                while (resultSet.next()) {
+                    blackhole.consume(resultSet.getLong(1));
+                }
+            }
+        }
+    }
+
+    @Benchmark
+    public void dedupLookup(Blackhole blackhole) throws SQLException {
+        long id = nextProbe();
+        dedupLookup.setString(1, "method" + id % METHODS);
+        dedupLookup.setString(2, Long.toHexString(id * 0x9E3779B97F4A7C15L));
+        try (ResultSet resultSet = dedupLookup.executeQuery()) {
+            blackhole.consume(resultSet.next());
+        }
+    }
+
+    // Walks over the pending ids so every invocation looks up a different row
+    private long nextProbe() {
+        probe = (probe + 7_919) % rows;
+        return probe - probe % 100;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("drop all objects");
+        }
+        connection.close();
+    }
+}
@@ -0,0 +1,126 @@
+package com.gr.common.rest.messagebox.aspect.cricuitbreaker.aspect;
+
+import com.gr.common.rest.messagebox.metrics.MessageBoxMetrics;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Retries asynchronous calls on a small shared scheduler with exponential backoff, jitter and an overall deadline,
+ * so no request thread sleeps between attempts.
+ */
+@Slf4j
+@Component
+public class AsyncRetryExecutor {
+
+    @Autowired
+    private MessageBoxMetrics messageBoxMetrics;
+
+    @Value("${rest.messagebox.retry.async.pool-size:2}")
+    private int poolSize;
+
+    @Value("${rest.messagebox.retry.async.initial-backoff-millis:200}")
+    private long initialBackoffMillis;
+
+    @Value("${rest.messagebox.retry.async.max-backoff-millis:30000}")
+    private long maxBackoffMillis;
+
+    @Value("${rest.messagebox.retry.async.jitter:0.5}")
+    private double jitter;
+
+    @Value("${rest.messagebox.retry.async.deadline-millis:120000}")
+    private long defaultDeadlineMillis;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        AtomicInteger threadCount = new AtomicInteger();
+        scheduler = Executors.newScheduledThreadPool(poolSize, runnable -> {
+            Thread thread = new Thread(runnable, "rest-async-retry-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    public <T> CompletableFuture<T> execute(String name, CircuitBreaker circuitBreaker, int maxAttempts, long deadlineMillis, Supplier<CompletionStage<T>> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(deadlineMillis > 0 ? deadlineMillis : defaultDeadlineMillis);
+        attempt(name, CircuitBreaker.decorateCompletionStage(circuitBreaker, call), result, 1, maxAttempts, deadline);
+        return result;
+    }
+
+    private <T> void attempt(String name, Supplier<CompletionStage<T>> call, CompletableFuture<T> result, int attempt, int maxAttempts, long deadline) {
+        call.get().whenComplete((value, error) -> {
+            if (error == null) {
+                result.complete(value);
+                return;
+            }
+            Throwable cause = unwrap(error);
+            long backoffMillis = backoffMillis(attempt);
+            // An open circuit will not let the next attempt through either, give up and let the outbox take over
+            if (cause instanceof CallNotPermittedException || attempt >= maxAttempts
+                    || System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoffMillis) > deadline) {
+                log.error("Async retry gave up for {} after {} attempts", name, attempt);
+                result.completeExceptionally(cause);
+                return;
+            }
+            log.info("Async retry attempt #{} for {} in {}ms", attempt, name, backoffMillis);
+            messageBoxMetrics.retry(name);
+            scheduler.schedule(() -> attempt(name, call, result, attempt + 1, maxAttempts, deadline), backoffMillis, TimeUnit.MILLISECONDS);
+        });
+    }
+
+    // Completes with a TimeoutException when the future is not done within timeoutMillis, Java 8 has no orTimeout
+    public <T> CompletableFuture<T> within(CompletableFuture<T> future, long timeoutMillis) {
+        CompletableFuture<T> bounded = new CompletableFuture<>();
+        ScheduledFuture<?> timeout = scheduler.schedule(
+                () -> bounded.completeExceptionally(new TimeoutException("not completed within " + timeoutMillis + "ms")), timeoutMillis, TimeUnit.MILLISECONDS);
+        future.whenComplete((value, error) -> {
+            timeout.cancel(false);
+            if (error != null) {
+                bounded.completeExceptionally(unwrap(error));
+            } else {
+                bounded.complete(value);
+            }
+        });
+        return bounded;
+    }
+
+    private long backoffMillis(int attempt) {
+        long exponential = initialBackoffMillis << Math.min(attempt - 1, 30);
+        long capped = Math.min(maxBackoffMillis, exponential < 0 ? maxBackoffMillis : exponential);
+        double factor = 1 - jitter + ThreadLocalRandom.current().nextDouble() * 2 * jitter;
+        return Math.max(0, (long) (capped * factor));
+    }
+
+    private static Throwable unwrap(Throwable error) {
+        if ((error instanceof CompletionException || error instanceof ExecutionException) && error.getCause() != null) {
+            return error.getCause();
+        }
+        return error;
+    }
+}
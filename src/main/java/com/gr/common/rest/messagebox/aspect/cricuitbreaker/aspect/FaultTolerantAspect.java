@@ -1,9 +1,14 @@
 package com.gr.common.rest.messagebox.aspect.cricuitbreaker.aspect;
 
 import com.gr.common.rest.messagebox.aspect.cricuitbreaker.event.CircuitBreakerEventListener;
+import com.gr.common.rest.messagebox.aspect.cricuitbreaker.event.OrderedOutboxDispatcher;
 import com.gr.common.rest.messagebox.constants.*;
 import com.gr.common.rest.messagebox.entity.RestMessage;
-import com.gr.common.rest.messagebox.service.RestMessageService;
+import com.gr.common.rest.messagebox.exception.OutboxQueuedException;
+import com.gr.common.rest.messagebox.metrics.MessageBoxMetrics;
+import com.gr.common.rest.messagebox.serializer.CaptureSerializer;
+import com.gr.common.rest.messagebox.service.OutboxBacklogIndex;
+import com.gr.common.rest.messagebox.service.OutboxCaptureService;
 import com.gr.common.util.Util;
 import com.gr.grid.common.util.JsonUtil;
 import com.gr.sync.common.exception.RestClientException;
@@ -13,18 +18,30 @@ import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
 import io.github.resilience4j.decorators.Decorators;
 import io.github.resilience4j.retry.Retry;
 import io.github.resilience4j.retry.RetryConfig;
+import io.micrometer.core.instrument.Timer;
 import lombok.extern.slf4j.Slf4j;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
-import org.aspectj.lang.annotation.Before;
+import org.aspectj.lang.reflect.MethodSignature;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.expression.MethodBasedEvaluationContext;
+import org.springframework.core.DefaultParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
 import org.springframework.core.env.Environment;
+import org.springframework.expression.Expression;
+import org.springframework.expression.ExpressionParser;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
 import org.springframework.stereotype.Component;
 
 import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Consumer;
 import java.util.function.Supplier;
 
@@ -38,72 +55,60 @@ import static org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE;
 public class FaultTolerantAspect {
 
     @Autowired
-    private RestMessageService restMessageService;
+    private OutboxCaptureService outboxCaptureService;
+
+    @Autowired
+    private CaptureSerializer captureSerializer;
+
+    @Autowired
+    private MessageBoxMetrics messageBoxMetrics;
 
     @Autowired
     private CircuitBreakerEventListener circuitBreakerEventListener;
 
-    private final CircuitBreaker circuitBreaker;
+    @Autowired
+    private OrderedOutboxDispatcher orderedOutboxDispatcher;
 
     @Autowired
-    private Environment env;
+    private OutboxBacklogIndex outboxBacklogIndex;
 
+    private final CircuitBreakerRegistry circuitBreakerRegistry;
 
-    // Flag to track if outbox messages have been processed for the current request
-    private final ThreadLocal<Boolean> outboxProcessed = ThreadLocal.withInitial(() -> false);
+    @Autowired
+    private Environment env;
 
-    private Boolean transitionEventListenerRequired = Boolean.TRUE;
+    @Autowired
+    private AsyncRetryExecutor asyncRetryExecutor;
 
-    private GrSystem sourceSystem;
+    private final ExpressionParser parser = new SpelExpressionParser();
 
+    private final ParameterNameDiscoverer parameterNameDiscoverer = new DefaultParameterNameDiscoverer();
 
-    @Value("${resilience4j.retry.maxAttempts:10}")
-    private Integer maxAttempts;
-//
-    @Value("${resilience4j.retry.waitDuration:1000}")
-    private Long waitDuration;
-//
-//    @Value("${circuit.breaker.name}")
-//    private String circuitBreakerName;
+    private final Map<String, Expression> orderingKeyExpressions = new ConcurrentHashMap<>();
 
-    private final Retry retry ;
+    private final Integer maxAttempts;
 
+    private final Long waitDuration;
 
-    public FaultTolerantAspect(CircuitBreakerRegistry circuitBreakerRegistry, @Value("${resilience4j.retry.maxAttempts}") Integer maxAttempts, @Value("${resilience4j.retry.waitDuration}") final Integer waitDuration) {
-        this.circuitBreaker = circuitBreakerRegistry.circuitBreaker("commService");
+    // Circuit breaker and retry per (serviceName, targetURI), so an outage of one target does not open the circuit for the others
+    private final Map<String, TargetFaultTolerance> targets = new ConcurrentHashMap<>();
 
-        log.info("maxAttempts: " + maxAttempts);
-        log.info("waitDuration: " + waitDuration);
-        RetryConfig retryConfig = RetryConfig.custom()
-                .maxAttempts(maxAttempts)
-                .waitDuration(Duration.ofSeconds(waitDuration))
-                .build();
+    // How long an async live call waits for the outbox backlog of its ordering key before it goes to the outbox itself
+    @Value("${rest.messagebox.ordering.backlog-wait-millis:10000}")
+    private long backlogWaitMillis;
 
-        this.retry = Retry.of("retryService", retryConfig);
+    // Per-target breakers without resilience4j instance config of their own copy the config of this instance
+    @Value("${rest.messagebox.circuitbreaker.base-instance:commService}")
+    private String baseCircuitBreakerInstance;
 
-        // Add event consumer to log retry events
-        this.retry.getEventPublisher()
-                .onRetry(evt -> {
-                    log.info("Retry attempt #{} for method {}", evt.getNumberOfRetryAttempts(), evt.getName());
-                })
-                .onError(evt -> log.error("Retry error for method {} after {} attempts", evt.getName(), evt.getNumberOfRetryAttempts()))
-                .onSuccess(evt -> log.info("Retry success for method {} after {} attempts", evt.getName(), evt.getNumberOfRetryAttempts()))
-                .onIgnoredError(evt -> log.warn("Retry ignored an error for method {} after {} attempts", evt.getName(), evt.getNumberOfRetryAttempts()))
-                .onEvent(evt -> log.debug("Retry event {} for method {}", evt.getEventType(), evt.getName()));
-    }
 
-    @Before("@annotation(restFaultTolerant)")
-    public void before(RestFaultTolerant restFaultTolerant) {
-        this.sourceSystem = restFaultTolerant.sourceSystem();
-        this.waitDuration = restFaultTolerant.waitDuration();
-        this.maxAttempts = restFaultTolerant.maxAttempts();
-        // If outbox message found, process all the pending outbox messages first
-        //if initialState is zero process outbox message at first-hand then proceed to the incoming message.
-        if(Boolean.TRUE.equals(restFaultTolerant.processOutBoxMessagesFirst()) && Boolean.FALSE.equals(outboxProcessed.get())) {
-            outboxProcessed.set(Boolean.TRUE);
-            circuitBreakerEventListener.processOutboxMessagesFirst(restFaultTolerant.methodName());
-        }
-        this.transitionEventListenerRequired = restFaultTolerant.transitionEventListenerRequired();
+    public FaultTolerantAspect(CircuitBreakerRegistry circuitBreakerRegistry, @Value("${resilience4j.retry.maxAttempts:10}") Integer maxAttempts, @Value("${resilience4j.retry.waitDuration:1000}") final Long waitDuration) {
+        this.circuitBreakerRegistry = circuitBreakerRegistry;
+        this.maxAttempts = maxAttempts;
+        this.waitDuration = waitDuration;
+
+        log.info("maxAttempts: " + maxAttempts);
+        log.info("waitDuration: " + waitDuration);
     }
 
     @Around("@annotation(restFaultTolerant)")
@@ -118,20 +123,169 @@ public class FaultTolerantAspect {
 
         String url = targetServiceURL + restFaultTolerant.targetURI();
         ServiceName serviceName = restFaultTolerant.serviceName();
+        TargetFaultTolerance target = target(restFaultTolerant);
+        String orderingKey = orderingKey(proceedingJoinPoint, restFaultTolerant);
+        Consumer<Throwable> fallback = ex -> recoverMessageIncaseOfFallBack(serviceName, name, url, requestDto, orderingKey, ex);
+
+        if (restFaultTolerant.processOutBoxMessagesFirst()) {
+            if (Util.isNull(orderingKey)) {
+                // Ordering per method: every pending message of the method goes out before this call. The in-memory
+                // index spares the database round trip when the method has nothing pending, which is nearly always.
+                if (outboxBacklogIndex.hasBacklog(name)) {
+                    circuitBreakerEventListener.processOutboxMessagesFirst(name);
+                }
+            } else if (outboxBacklogIndex.hasBacklog(name, orderingKey)) {
+                // Ordering per key: only this key's backlog has to be delivered first, on the key's lane
+                CompletableFuture<Void> backlog = orderedOutboxDispatcher.drain(name, orderingKey, false);
+                if (restFaultTolerant.asyncRetry() && returnsCompletionStage(proceedingJoinPoint)) {
+                    return afterBacklog(asyncRetryExecutor.within(backlog, backlogWaitMillis), fallback, () -> executeAsync(proceedingJoinPoint, restFaultTolerant, target, fallback));
+                }
+                return queueBehindBacklog(proceedingJoinPoint, backlog, serviceName, name, url, requestDto, orderingKey);
+            }
+        }
 
+        if (restFaultTolerant.asyncRetry()) {
+            return executeAsync(proceedingJoinPoint, restFaultTolerant, target, fallback);
+        }
 
 //        Object response =execute(rethrowSupplier(proceedingJoinPoint::proceed), ex -> recoverMessageIncaseOfFallBack(serviceName, name, url, requestDto, ex));
-        Object response = execute(rethrowSupplier(proceedingJoinPoint::proceed),
-                ex -> recoverMessageIncaseOfFallBack(serviceName, name, url, requestDto, ex));
+        Object response = execute(target, timed(target, rethrowSupplier(proceedingJoinPoint::proceed)), fallback);
         log.info("Circuit Breaker Aspect completed execution of class - {}, method - {} endpoint - {}", proceedingJoinPoint.getSignature().getDeclaringType().getName(), proceedingJoinPoint.getSignature().getName(), url);
 
         return response;
     }
 
-    private <T> T execute(Supplier<T> supplier, Consumer<Throwable> fallback) {
+    // Evaluates the ordering key expression against the call arguments, null when none is configured or it yields null
+    private String orderingKey(ProceedingJoinPoint proceedingJoinPoint, RestFaultTolerant restFaultTolerant) {
+        if (restFaultTolerant.orderingKey().isEmpty()) {
+            return null;
+        }
+        MethodBasedEvaluationContext context = new MethodBasedEvaluationContext(null,
+                ((MethodSignature) proceedingJoinPoint.getSignature()).getMethod(), proceedingJoinPoint.getArgs(), parameterNameDiscoverer);
+        context.setVariable("args", proceedingJoinPoint.getArgs());
+        Object key = orderingKeyExpressions.computeIfAbsent(restFaultTolerant.orderingKey(), parser::parseExpression).getValue(context);
+        return Util.isNull(key) ? null : key.toString();
+    }
+
+    // A synchronous call does not wait for its key's backlog: it is captured behind it and delivered on the key's lane
+    // once the running drain is done. A void method returns, any other gets OutboxQueuedException as it has no result.
+    private Object queueBehindBacklog(ProceedingJoinPoint proceedingJoinPoint, CompletableFuture<Void> backlog, ServiceName serviceName,
+                                      String methodName, String url, Object requestDto, String orderingKey) {
+        CaptureSerializer.Captured content = captureSerializer.capture(requestDto);
+        outboxCaptureService.capture(RestMessage.builder()
+                .content(content.getJson())
+                .contentHash(content.getContentHash())
+                .contentType("JSON")
+                .endPointUrl(url)
+                .httpMethod(HTTPMethod.POST)
+                .type(Type.OUTBOX)
+                .createDateTime(LocalDateTime.now())
+                .status(RestMessageStatus.NEW)
+                .retryCount(0)
+                .sourceSystem(GrSystem.GRID2)
+                .sourceService(serviceName)
+                .serviceMethodName(methodName)
+                .orderingKey(orderingKey)
+                .build());
+        // The running drain may have passed the new message already. A failed drain leaves the key to the next sweep.
+        backlog.whenComplete((ignored, error) -> {
+            if (Util.isNull(error)) {
+                orderedOutboxDispatcher.drain(methodName, orderingKey, false);
+            }
+        });
+        Class<?> returnType = ((MethodSignature) proceedingJoinPoint.getSignature()).getReturnType();
+        if (void.class.equals(returnType) || Void.class.equals(returnType)) {
+            return null;
+        }
+        throw new OutboxQueuedException("call to " + methodName + " queued behind the outbox backlog of ordering key " + orderingKey);
+    }
+
+    @SuppressWarnings("unchecked")
+    private CompletableFuture<Object> afterBacklog(CompletableFuture<Void> backlog, Consumer<Throwable> fallback, LiveCall call) {
+        return backlog.handle((ignored, error) -> error).thenCompose(error -> {
+            CompletableFuture<Object> result = new CompletableFuture<>();
+            if (Util.isNotNull(error)) {
+                Throwable cause = error instanceof CompletionException && Util.isNotNull(error.getCause()) ? error.getCause() : error;
+                fallback.accept(cause);
+                result.completeExceptionally(cause);
+                return result;
+            }
+            try {
+                return (CompletableFuture<Object>) call.call();
+            } catch (Throwable throwable) {
+                result.completeExceptionally(throwable);
+                return result;
+            }
+        });
+    }
+
+    // CompletionStage and CompletableFuture signatures only, an Object or Future return type may hold anything
+    private static boolean returnsCompletionStage(ProceedingJoinPoint proceedingJoinPoint) {
+        return CompletionStage.class.isAssignableFrom(((MethodSignature) proceedingJoinPoint.getSignature()).getReturnType());
+    }
+
+    private interface LiveCall {
+        Object call() throws Throwable;
+    }
+
+    private <T> T execute(TargetFaultTolerance target, Supplier<T> supplier, Consumer<Throwable> fallback) {
+        try {
+            return Decorators.ofSupplier(supplier)
+                    .withRetry(target.retry)
+                    .withCircuitBreaker(target.circuitBreaker)
+                    .get();
+        } catch (Throwable throwable) {
+            fallback.accept(throwable);
+            throw throwable; // Rethrow the original exception.
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Object executeAsync(ProceedingJoinPoint proceedingJoinPoint, RestFaultTolerant restFaultTolerant, TargetFaultTolerance target, Consumer<Throwable> fallback) throws Throwable {
+        if (returnsCompletionStage(proceedingJoinPoint)) {
+            CompletableFuture<Object> result = asyncRetryExecutor.execute(target.circuitBreaker.getName(), target.circuitBreaker, target.maxAttempts,
+                    restFaultTolerant.retryDeadlineMillis(), timedAsync(target, rethrowSupplier(() -> (CompletionStage<Object>) proceedingJoinPoint.proceed())));
+            result.whenComplete((value, error) -> {
+                if (error != null) {
+                    fallback.accept(error);
+                }
+            });
+            return result;
+        }
+        // Synchronous signature: a single attempt, a failure goes straight to the outbox and is replayed from there
+        return execute(timed(target, rethrowSupplier(proceedingJoinPoint::proceed)), target.circuitBreaker, fallback);
+    }
+
+    // Downstream latency of every attempt, retries included
+    private <T> Supplier<T> timed(TargetFaultTolerance target, Supplier<T> supplier) {
+        return () -> {
+            Timer.Sample sample = messageBoxMetrics.startTimer();
+            boolean succeeded = false;
+            try {
+                T result = supplier.get();
+                succeeded = true;
+                return result;
+            } finally {
+                messageBoxMetrics.downstream(target.circuitBreaker.getName(), succeeded, sample);
+            }
+        };
+    }
+
+    private <T> Supplier<CompletionStage<T>> timedAsync(TargetFaultTolerance target, Supplier<CompletionStage<T>> supplier) {
+        return () -> {
+            Timer.Sample sample = messageBoxMetrics.startTimer();
+            try {
+                return supplier.get().whenComplete((value, error) -> messageBoxMetrics.downstream(target.circuitBreaker.getName(), error == null, sample));
+            } catch (RuntimeException e) {
+                messageBoxMetrics.downstream(target.circuitBreaker.getName(), false, sample);
+                throw e;
+            }
+        };
+    }
+
+    private <T> T execute(Supplier<T> supplier, CircuitBreaker circuitBreaker, Consumer<Throwable> fallback) {
         try {
             return Decorators.ofSupplier(supplier)
-                    .withRetry(retry)
                     .withCircuitBreaker(circuitBreaker)
                     .get();
         } catch (Throwable throwable) {
@@ -140,19 +294,77 @@ public class FaultTolerantAspect {
         }
     }
 
+    private TargetFaultTolerance target(RestFaultTolerant restFaultTolerant) {
+        String targetName = !restFaultTolerant.circuitBreakerName().isEmpty() ? restFaultTolerant.circuitBreakerName()
+                : restFaultTolerant.serviceName() + (restFaultTolerant.targetURI().isEmpty() ? "" : ":" + restFaultTolerant.targetURI());
+        // CircuitBreakerDrainCoordinator picks the breaker up from the registry, no registration per call
+        return targets.computeIfAbsent(targetName, name -> newTarget(name, restFaultTolerant));
+    }
+
+    private TargetFaultTolerance newTarget(String targetName, RestFaultTolerant restFaultTolerant) {
+        // Annotation values win over the resilience4j.retry.* defaults
+        int attempts = restFaultTolerant.maxAttempts() > 0 ? restFaultTolerant.maxAttempts() : maxAttempts;
+        long wait = restFaultTolerant.waitDuration() > 0 ? restFaultTolerant.waitDuration() : waitDuration;
+        log.info("creating circuit breaker and retry for {}, maxAttempts: {}, waitDuration: {}", targetName, attempts, wait);
+
+        RetryConfig retryConfig = RetryConfig.custom()
+                .maxAttempts(attempts)
+                .waitDuration(Duration.ofSeconds(wait))
+                .build();
+        Retry retry = Retry.of(targetName, retryConfig);
+
+        // Add event consumer to log retry events
+        retry.getEventPublisher()
+                .onRetry(evt -> {
+                    log.info("Retry attempt #{} for method {}", evt.getNumberOfRetryAttempts(), evt.getName());
+                    messageBoxMetrics.retry(evt.getName());
+                })
+                .onError(evt -> log.error("Retry error for method {} after {} attempts", evt.getName(), evt.getNumberOfRetryAttempts()))
+                .onSuccess(evt -> log.info("Retry success for method {} after {} attempts", evt.getName(), evt.getNumberOfRetryAttempts()))
+                .onIgnoredError(evt -> log.warn("Retry ignored an error for method {} after {} attempts", evt.getName(), evt.getNumberOfRetryAttempts()))
+                .onEvent(evt -> log.debug("Retry event {} for method {}", evt.getEventType(), evt.getName()));
+
+        CircuitBreaker circuitBreaker = circuitBreaker(targetName);
+        circuitBreaker.getEventPublisher().onStateTransition(messageBoxMetrics::circuitBreakerTransition);
+        return new TargetFaultTolerance(circuitBreaker, retry, attempts);
+    }
+
+    private CircuitBreaker circuitBreaker(String targetName) {
+        // resilience4j.circuitbreaker.instances.<targetName> (or the explicitly named instance) is created by the registry at startup
+        return circuitBreakerRegistry.find(targetName)
+                .orElseGet(() -> circuitBreakerRegistry.circuitBreaker(targetName,
+                        circuitBreakerRegistry.circuitBreaker(baseCircuitBreakerInstance).getCircuitBreakerConfig()));
+    }
+
+    private static final class TargetFaultTolerance {
+        private final CircuitBreaker circuitBreaker;
+        private final Retry retry;
+        private final int maxAttempts;
+
+        private TargetFaultTolerance(CircuitBreaker circuitBreaker, Retry retry, int maxAttempts) {
+            this.circuitBreaker = circuitBreaker;
+            this.retry = retry;
+            this.maxAttempts = maxAttempts;
+        }
+    }
+
 
     // fall method as recovery handler using outbox design pattern.
     public <T> Object recoverMessageIncaseOfFallBack(ServiceName serviceName, String methodName, String url, Object requestDto, Throwable throwable) {
+        return recoverMessageIncaseOfFallBack(serviceName, methodName, url, requestDto, null, throwable);
+    }
 
-            if (transitionEventListenerRequired) {
-                circuitBreaker.getEventPublisher().onStateTransition(circuitBreakerEventListener::circuitBreakerTransitionEventListener);
-            }
+    public <T> Object recoverMessageIncaseOfFallBack(ServiceName serviceName, String methodName, String url, Object requestDto, String orderingKey, Throwable throwable) {
 
             RestMessage restMessage;
+            // Serialized once, the content hash comes from the same JSON. Other failures keep JsonUtil.convertToJson.
+            CaptureSerializer.Captured content = throwable instanceof RestClientException || throwable instanceof CallNotPermittedException
+                    ? captureSerializer.capture(requestDto) : captureSerializer.captureConverted(requestDto);
             if (throwable instanceof RestClientException) {
                 RestClientException restClientException = (RestClientException) throwable;
                 restMessage = RestMessage.builder()
-                        .content(JsonUtil.toJson(requestDto))
+                        .content(content.getJson())
+                        .contentHash(content.getContentHash())
                         .contentType("JSON")
                         .endPointUrl(restClientException.getUrl())
                         .httpMethod(HTTPMethod.valueOf(restClientException.getMethodType()))
@@ -176,7 +388,8 @@ public class FaultTolerantAspect {
                 CallNotPermittedException callNotPermittedException = (CallNotPermittedException) throwable;
                 // The circuit breaker is open and did not allow the method execution
                 restMessage = RestMessage.builder()
-                        .content(JsonUtil.toJson(requestDto))
+                        .content(content.getJson())
+                        .contentHash(content.getContentHash())
                         .contentType("JSON")
                         .endPointUrl(url)
                         .httpMethod(HTTPMethod.POST)
@@ -196,7 +409,8 @@ public class FaultTolerantAspect {
                         .build();
             } else {
                 restMessage = RestMessage.builder()
-                        .content(JsonUtil.convertToJson(requestDto))
+                        .content(content.getJson())
+                        .contentHash(content.getContentHash())
                         .contentType("JSON")
                         .endPointUrl(url)
                         .httpMethod(HTTPMethod.POST)
@@ -217,7 +431,8 @@ public class FaultTolerantAspect {
 
             }
             restMessage.setRetryCount(Util.isNull(restMessage.getRetryCount()) ? 0 : restMessage.getRetryCount() + 1);
-            restMessageService.saveRestMessage(restMessage);
+            restMessage.setOrderingKey(orderingKey);
+            outboxCaptureService.capture(restMessage);
             return null;
     }
 
@@ -20,18 +20,36 @@ public @interface RestFaultTolerant {
     String targetURI() default "";
     GrSystem sourceSystem() default GrSystem.GRID2;
 
-    //When set true, on each circuit breaker transitioned to closed state, It will process all the outbox rest messages.
+    //resilience4j circuit breaker and retry instance name. Empty names the breaker SERVICE:/uri, which uses
+    //resilience4j.circuitbreaker.instances.<SERVICE:/uri> when configured, else the config of rest.messagebox.circuitbreaker.base-instance.
+    String circuitBreakerName() default "";
+
+    //No longer needed: every circuit breaker of the registry processes all the outbox rest messages when it transitions to closed state.
+    @Deprecated
     boolean transitionEventListenerRequired() default false;
 
     //Making sure ordering of messages: When set true it will first process all outbox rest message for the same method.
     boolean processOutBoxMessagesFirst() default false;
 
+    //SpEL over the call arguments (#p0, #a0, #args or parameter names), e.g. "#p0.accountId". With processOutBoxMessagesFirst
+    //the ordering is kept per key instead of per method: only the outbox messages of the call's own key go first, and
+    //messages of different keys are delivered in parallel. A synchronous call whose key has a backlog is not made but
+    //queued in the outbox behind it; a void method returns, any other throws OutboxQueuedException.
+    String orderingKey() default "";
+
     @Value("${resilience4j.retry.waitDuration}")
     long waitDuration() default 0;
 
     @Value("${resilience4j.retry.maxAttempts}")
     int maxAttempts() default 0;
 
+    //When set true, retries never sleep on the calling thread. Methods returning a CompletableFuture/CompletionStage are retried
+    //in the background with exponential backoff and jitter, any other method gets a single attempt and fails fast into the outbox.
+    boolean asyncRetry() default false;
+
+    //Overall time budget of the async retries in milliseconds, 0 uses rest.messagebox.retry.async.deadline-millis.
+    long retryDeadlineMillis() default 0;
+
 }
 
 
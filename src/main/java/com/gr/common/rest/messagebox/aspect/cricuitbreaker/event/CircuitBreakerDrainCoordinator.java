@@ -0,0 +1,141 @@
+package com.gr.common.rest.messagebox.aspect.cricuitbreaker.event;
+
+import com.gr.common.rest.messagebox.service.RestMessageService;
+import com.gr.common.v2.util.Util;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.github.resilience4j.circuitbreaker.event.CircuitBreakerOnStateTransitionEvent;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Drains the outbox when a circuit closes. Every circuit breaker of the registry is subscribed once, those configured
+ * at startup as well as those created later, so a breaker closing before any call went through it still drains. The
+ * drain runs on a dedicated
+ * thread instead of the thread that caused the transition, and transitions arriving while a drain is running are
+ * coalesced into a single follow-up drain. Messages the drain skipped because their backoff has not passed yet get
+ * another drain when the earliest of them becomes due, so they do not wait for the next CLOSED transition.
+ */
+@Slf4j
+@Component
+public class CircuitBreakerDrainCoordinator {
+
+    @Autowired
+    private CircuitBreakerEventListener circuitBreakerEventListener;
+
+    @Autowired
+    private RestMessageService restMessageService;
+
+    @Autowired
+    private CircuitBreakerRegistry circuitBreakerRegistry;
+
+    // By instance, a breaker replaced in the registry under the same name needs its own subscription
+    private final Set<CircuitBreaker> registeredCircuitBreakers = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+    private final AtomicBoolean draining = new AtomicBoolean(false);
+
+    private final AtomicBoolean drainRequested = new AtomicBoolean(false);
+
+    private ScheduledExecutorService drainExecutor;
+
+    // The pending drain for not yet due messages, only the earliest one is kept
+    private ScheduledFuture<?> dueDrain;
+
+    @PostConstruct
+    public void init() {
+        drainExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "outbox-drain");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // Subscribed before the existing breakers are listed so one created in between is not missed
+        circuitBreakerRegistry.getEventPublisher()
+                .onEntryAdded(event -> register(event.getAddedEntry()))
+                .onEntryReplaced(event -> {
+                    registeredCircuitBreakers.remove(event.getOldEntry());
+                    register(event.getNewEntry());
+                })
+                .onEntryRemoved(event -> registeredCircuitBreakers.remove(event.getRemovedEntry()));
+        circuitBreakerRegistry.getAllCircuitBreakers().forEach(this::register);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        drainExecutor.shutdownNow();
+    }
+
+    public void register(CircuitBreaker circuitBreaker) {
+        if (registeredCircuitBreakers.add(circuitBreaker)) {
+            log.info("draining outbox on CLOSED transitions of circuit breaker {}", circuitBreaker.getName());
+            circuitBreaker.getEventPublisher().onStateTransition(this::onStateTransition);
+        }
+    }
+
+    private void onStateTransition(CircuitBreakerOnStateTransitionEvent event) {
+        log.info("Circuit Breaker {} state transitioned event from {} to {}", event.getCircuitBreakerName(), event.getStateTransition().getFromState(), event.getStateTransition().getToState());
+        if (CircuitBreaker.State.CLOSED.equals(event.getStateTransition().getToState())) {
+            requestDrain();
+        }
+    }
+
+    public void requestDrain() {
+        drainRequested.set(true);
+        if (draining.compareAndSet(false, true)) {
+            drainExecutor.execute(this::drain);
+        }
+    }
+
+    private void drain() {
+        try {
+            while (drainRequested.getAndSet(false)) {
+                circuitBreakerEventListener.processOutboxOnClosedState();
+            }
+        } catch (Exception e) {
+            log.error("outbox drain failed: {}", e.getMessage(), e);
+        } finally {
+            draining.set(false);
+        }
+        // A transition may have slipped in between the last check and releasing the flag
+        if (drainRequested.get() && draining.compareAndSet(false, true)) {
+            drainExecutor.execute(this::drain);
+            return;
+        }
+        scheduleDueDrain();
+    }
+
+    private void scheduleDueDrain() {
+        try {
+            LocalDateTime nextAttemptAt = restMessageService.nextOutboxAttemptAt();
+            if (Util.isNull(nextAttemptAt)) {
+                return;
+            }
+            long delayMillis = Math.max(0L, Duration.between(LocalDateTime.now(), nextAttemptAt).toMillis());
+            synchronized (this) {
+                if (Util.isNotNull(dueDrain) && !dueDrain.isDone() && dueDrain.getDelay(TimeUnit.MILLISECONDS) <= delayMillis) {
+                    return;
+                }
+                if (Util.isNotNull(dueDrain)) {
+                    dueDrain.cancel(false);
+                }
+                log.debug("next outbox drain in {}ms for messages not yet due", delayMillis);
+                dueDrain = drainExecutor.schedule(this::requestDrain, delayMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (Exception e) {
+            log.error("could not schedule the outbox drain of messages not yet due: {}", e.getMessage(), e);
+        }
+    }
+}
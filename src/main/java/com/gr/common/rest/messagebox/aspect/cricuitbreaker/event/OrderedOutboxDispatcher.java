@@ -0,0 +1,195 @@
+package com.gr.common.rest.messagebox.aspect.cricuitbreaker.event;
+
+import com.gr.common.rest.messagebox.constants.RestMessageStatus;
+import com.gr.common.rest.messagebox.entity.RestMessage;
+import com.gr.common.rest.messagebox.service.OutboxBacklogIndex;
+import com.gr.common.rest.messagebox.service.RestMessageService;
+import com.gr.common.v2.util.Util;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Delivers outbox messages that carry an ordering key. Keys are hashed onto single-threaded lanes, so the messages
+ * of one key go out one after another in id order while different keys are sent in parallel. Delivery of a key
+ * stops at its first message that fails or is not due yet, later messages never overtake it.
+ */
+@Slf4j
+@Component
+public class OrderedOutboxDispatcher {
+
+    @Autowired
+    private RestMessageService restMessageService;
+
+    @Autowired
+    private OutboxBacklogIndex outboxBacklogIndex;
+
+    @Autowired
+    private OutboxReplayEngine outboxReplayEngine;
+
+    @Value("${rest.messagebox.ordering.lanes:8}")
+    private int laneCount;
+
+    @Value("${rest.messagebox.ordering.chunk-size:50}")
+    private int chunkSize;
+
+    @Value("${rest.messagebox.ordering.sweep-interval-millis:30000}")
+    private long sweepIntervalMillis;
+
+    private final Map<OrderingKey, CompletableFuture<Void>> draining = new ConcurrentHashMap<>();
+
+    private ExecutorService[] lanes;
+
+    private ScheduledExecutorService sweeper;
+
+    @PostConstruct
+    public void init() {
+        lanes = new ExecutorService[Math.max(1, laneCount)];
+        for (int i = 0; i < lanes.length; i++) {
+            String name = "outbox-ordered-" + i;
+            lanes[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        if (sweepIntervalMillis > 0) {
+            sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "outbox-ordered-sweep");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sweeper.scheduleWithFixedDelay(this::drainBacklogSafely, sweepIntervalMillis, sweepIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (Util.isNotNull(sweeper)) {
+            sweeper.shutdownNow();
+        }
+        for (ExecutorService lane : lanes) {
+            lane.shutdownNow();
+        }
+    }
+
+    // Completes once every pending message of the key has been delivered, exceptionally when delivery stopped at a
+    // message that failed or, with dueOnly, at one whose backoff has not passed. Concurrent requests share one drain.
+    public CompletableFuture<Void> drain(String methodName, String orderingKey, boolean dueOnly) {
+        OrderingKey key = new OrderingKey(methodName, orderingKey);
+        CompletableFuture<Void> drained = new CompletableFuture<>();
+        CompletableFuture<Void> running = draining.putIfAbsent(key, drained);
+        if (Util.isNotNull(running)) {
+            return running;
+        }
+        drained.whenComplete((ignored, error) -> draining.remove(key, drained));
+        lanes[Math.floorMod(key.hashCode(), lanes.length)].execute(() -> {
+            try {
+                drainKey(key, dueOnly);
+                drained.complete(null);
+            } catch (Exception e) {
+                drained.completeExceptionally(e);
+            }
+        });
+        return drained;
+    }
+
+    // Drains every key with a backlog, e.g. when a circuit closes. Keys are reloaded first, captures of other
+    // replicas and write-behind captures may not have been recorded here.
+    public void drainBacklog() {
+        outboxBacklogIndex.seedOrderingKeys();
+        outboxBacklogIndex.forEachOrderingKey((methodName, orderingKey) -> drain(methodName, orderingKey, true).whenComplete((ignored, error) -> {
+            if (Util.isNotNull(error)) {
+                log.debug("ordered outbox delivery of {}:{} stopped: {}", methodName, orderingKey, error.getMessage());
+            }
+        }));
+    }
+
+    private void drainBacklogSafely() {
+        try {
+            drainBacklog();
+        } catch (Exception e) {
+            log.error("ordered outbox sweep failed: {}", e.getMessage(), e);
+        }
+    }
+
+    private void drainKey(OrderingKey key, boolean dueOnly) {
+        long lastId = 0L;
+        List<RestMessage> chunk;
+        while (!(chunk = claim(key, lastId)).isEmpty()) {
+            for (int i = 0; i < chunk.size(); i++) {
+                RestMessage message = chunk.get(i);
+                if (dueOnly && Util.isNotNull(message.getNextAttemptAt()) && message.getNextAttemptAt().isAfter(LocalDateTime.now())) {
+                    restMessageService.releaseLeases(chunk.subList(i, chunk.size()));
+                    throw new IllegalStateException("outbox message " + message.getId() + " of " + key + " is not due before " + message.getNextAttemptAt());
+                }
+                RestMessage replayed = outboxReplayEngine.replay(message).block();
+                if (Util.isNull(replayed) || !RestMessageStatus.SUCCESS.equals(replayed.getStatus())) {
+                    restMessageService.releaseLeases(chunk.subList(i + 1, chunk.size()));
+                    throw new IllegalStateException("outbox message " + message.getId() + " of " + key + " could not be delivered: "
+                            + (Util.isNull(replayed) ? null : replayed.getResponseStatusMessage()));
+                }
+                lastId = message.getId();
+            }
+        }
+    }
+
+    // An empty claim clears the key, a capture recorded meanwhile puts it back and is claimed by the second look
+    private List<RestMessage> claim(OrderingKey key, long lastId) {
+        List<RestMessage> chunk = restMessageService.claimOrderedOutboxMessages(key.methodName, key.orderingKey, lastId, chunkSize);
+        if (chunk.isEmpty()) {
+            outboxBacklogIndex.orderingKeyDrained(key.methodName, key.orderingKey);
+            chunk = restMessageService.claimOrderedOutboxMessages(key.methodName, key.orderingKey, lastId, chunkSize);
+            if (!chunk.isEmpty()) {
+                outboxBacklogIndex.orderingKeyPending(key.methodName, key.orderingKey);
+            }
+        }
+        return chunk;
+    }
+
+    private static final class OrderingKey {
+        private final String methodName;
+        private final String orderingKey;
+
+        private OrderingKey(String methodName, String orderingKey) {
+            this.methodName = methodName;
+            this.orderingKey = orderingKey;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (this == other) {
+                return true;
+            }
+            if (!(other instanceof OrderingKey)) {
+                return false;
+            }
+            OrderingKey that = (OrderingKey) other;
+            return Objects.equals(methodName, that.methodName) && orderingKey.equals(that.orderingKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(methodName, orderingKey);
+        }
+
+        @Override
+        public String toString() {
+            return methodName + ":" + orderingKey;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.gr.common.rest.messagebox.aspect.cricuitbreaker.event;
+
+import com.gr.common.rest.messagebox.entity.RestMessage;
+import com.gr.common.rest.messagebox.metrics.MessageBoxMetrics;
+import com.gr.common.rest.messagebox.service.OutboxBacklogIndex;
+import com.gr.common.rest.messagebox.service.RestMessageService;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Transactional outbox of @GROutboxPattern(transactional = true). The message is written in the caller's transaction
+ * and sent by OutboxReplayEngine as soon as that transaction commits, a rollback discards it with the business data.
+ * The row is leased to this instance until the send completes, so the relay and the circuit close drain only pick it
+ * up when this instance went away before delivering it.
+ */
+@Slf4j
+@Component
+public class OutboxCommitDispatcher {
+
+    @Autowired
+    private RestMessageService restMessageService;
+
+    @Autowired
+    private OutboxReplayEngine outboxReplayEngine;
+
+    @Autowired
+    private OutboxBacklogIndex outboxBacklogIndex;
+
+    @Autowired
+    private MessageBoxMetrics messageBoxMetrics;
+
+    public void enlist(RestMessage restMessage) {
+        Timer.Sample sample = messageBoxMetrics.startTimer();
+        restMessageService.enlistRestMessage(restMessage);
+        if (!TransactionSynchronizationManager.isActualTransactionActive() || !TransactionSynchronizationManager.isSynchronizationActive()) {
+            // No surrounding transaction, the write above has committed on its own
+            log.debug("no transaction active for outbox message of {}, sending it right away", restMessage.getServiceMethodName());
+            committed(restMessage, sample);
+            return;
+        }
+        TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+            @Override
+            public void afterCommit() {
+                committed(restMessage, sample);
+            }
+        });
+    }
+
+    // The exchange runs on the netty event loop and the outcome is persisted on boundedElastic, nothing here blocks
+    // the committing thread or touches its finished transaction
+    private void committed(RestMessage restMessage, Timer.Sample sample) {
+        outboxBacklogIndex.captured(restMessage);
+        messageBoxMetrics.outboxCaptured(restMessage, sample);
+        outboxReplayEngine.replay(restMessage).subscribe(
+                replayed -> log.debug("outbox message ID {} dispatched after commit, status {}", replayed.getId(), replayed.getStatus()),
+                error -> log.error("outbox message ID {} could not be dispatched after commit, left to the relay: {}", restMessage.getId(), error.getMessage()));
+    }
+}
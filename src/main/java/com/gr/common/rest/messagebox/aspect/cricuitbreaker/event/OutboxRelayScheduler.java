@@ -0,0 +1,143 @@
+package com.gr.common.rest.messagebox.aspect.cricuitbreaker.event;
+
+import com.gr.common.rest.messagebox.constants.ServiceName;
+import com.gr.common.rest.messagebox.entity.RestMessage;
+import com.gr.common.rest.messagebox.service.RestMessageService;
+import com.gr.common.v2.util.Util;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+import reactor.core.publisher.Flux;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Background relay of pending outbox messages, independent of circuit breaker transitions. Every enabled source
+ * service is polled on its own schedule: the next poll follows after the minimum interval while there is backlog
+ * and backs off exponentially up to the maximum interval while a sweep finds nothing to deliver.
+ */
+@Slf4j
+@Component
+public class OutboxRelayScheduler {
+
+    private static final String PREFIX = "rest.messagebox.relay.";
+
+    @Autowired
+    private RestMessageService restMessageService;
+
+    @Autowired
+    private OutboxReplayEngine outboxReplayEngine;
+
+    @Autowired
+    private Environment env;
+
+    @Value("${rest.messagebox.relay.enabled:false}")
+    private boolean enabledByDefault;
+
+    @Value("${rest.messagebox.relay.min-interval-millis:1000}")
+    private long minIntervalMillis;
+
+    @Value("${rest.messagebox.relay.max-interval-millis:60000}")
+    private long maxIntervalMillis;
+
+    @Value("${rest.messagebox.relay.batch-size:100}")
+    private int defaultBatchSize;
+
+    private final List<ScheduledExecutorService> schedulers = new ArrayList<>();
+
+    @PostConstruct
+    public void init() {
+        for (ServiceName serviceName : ServiceName.values()) {
+            if (env.getProperty(PREFIX + "enabled." + serviceName.name(), Boolean.class, enabledByDefault)) {
+                // One thread per relay, a slow downstream service never delays the polls of another one
+                String name = "outbox-relay-" + serviceName.name();
+                ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                    Thread thread = new Thread(runnable, name);
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                schedulers.add(scheduler);
+                Relay relay = new Relay(serviceName, scheduler,
+                        env.getProperty(PREFIX + "batch-size." + serviceName.name(), Integer.class, defaultBatchSize),
+                        outboxReplayEngine.relayMaxAttemptsFor(serviceName));
+                log.info("outbox relay enabled for {}, batch size {}, max attempts {}", relay.serviceName, relay.batchSize, relay.maxAttempts);
+                scheduler.schedule(relay, minIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        schedulers.forEach(ScheduledExecutorService::shutdownNow);
+    }
+
+    private final class Relay implements Runnable {
+
+        private final ServiceName serviceName;
+
+        private final ScheduledExecutorService scheduler;
+
+        private final int batchSize;
+
+        private final int maxAttempts;
+
+        // Keyset position of the current sweep, each pending message is attempted once per sweep
+        private long lastId;
+
+        private long delivered;
+
+        private long delayMillis = minIntervalMillis;
+
+        private Relay(ServiceName serviceName, ScheduledExecutorService scheduler, int batchSize, int maxAttempts) {
+            this.serviceName = serviceName;
+            this.scheduler = scheduler;
+            this.batchSize = batchSize;
+            this.maxAttempts = maxAttempts;
+        }
+
+        @Override
+        public void run() {
+            try {
+                poll();
+            } catch (Exception e) {
+                log.error("outbox relay of {} failed: {}", serviceName, e.getMessage(), e);
+                endSweep();
+            } finally {
+                if (!scheduler.isShutdown()) {
+                    scheduler.schedule(this, delayMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+
+        private void poll() {
+            List<RestMessage> chunk = restMessageService.claimRelayOutboxMessages(serviceName, lastId, maxAttempts, batchSize);
+            if (!chunk.isEmpty()) {
+                lastId = chunk.get(chunk.size() - 1).getId();
+                Long sent = outboxReplayEngine.relay(Flux.fromIterable(chunk)).block();
+                delivered += Util.isNull(sent) ? 0 : sent;
+                log.debug("outbox relay of {} replayed {}, delivered {}", serviceName, chunk.size(), sent);
+            }
+            if (chunk.size() == batchSize) {
+                // More backlog behind this chunk
+                delayMillis = minIntervalMillis;
+            } else {
+                endSweep();
+            }
+        }
+
+        // A sweep that delivered something is followed by another one soon, an idle or failing sweep backs off
+        private void endSweep() {
+            delayMillis = delivered > 0 ? minIntervalMillis : Math.min(delayMillis * 2, maxIntervalMillis);
+            lastId = 0L;
+            delivered = 0;
+        }
+    }
+}
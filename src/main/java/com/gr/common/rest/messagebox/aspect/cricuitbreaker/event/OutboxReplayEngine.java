@@ -0,0 +1,359 @@
+package com.gr.common.rest.messagebox.aspect.cricuitbreaker.event;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gr.common.rest.messagebox.config.WebClientFactory;
+import com.gr.common.rest.messagebox.constants.HTTPMethod;
+import com.gr.common.rest.messagebox.constants.RestMessageStatus;
+import com.gr.common.rest.messagebox.constants.ServiceName;
+import com.gr.common.rest.messagebox.dedup.OutboxDedupFilter;
+import com.gr.common.rest.messagebox.entity.RestMessage;
+import com.gr.common.rest.messagebox.metrics.MessageBoxMetrics;
+import com.gr.common.rest.messagebox.service.OutboxBacklogIndex;
+import com.gr.common.rest.messagebox.service.RestMessageService;
+import com.gr.common.rest.messagebox.service.RetryBackoff;
+import com.gr.common.v2.util.Util;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+import javax.annotation.PostConstruct;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/**
+ * Replays outbox rest messages without blocking on each exchange. Messages are grouped by their source
+ * service and sent with a bounded number of in-flight requests per service, persisting the outcome of
+ * every exchange off the netty event loop. Methods configured with rest.messagebox.replay.bulk.uri.<methodName> are
+ * replayed in batches instead, one array request per batch with the outcome of each item mapped back to its message.
+ */
+@Component
+@Slf4j
+public class OutboxReplayEngine {
+
+    @Autowired
+    private RestMessageService restMessageService;
+
+    @Autowired
+    private WebClientFactory webClientFactory;
+
+    @Autowired
+    private OutboxDedupFilter outboxDedupFilter;
+
+    @Autowired
+    private MessageBoxMetrics messageBoxMetrics;
+
+    @Autowired
+    private RetryBackoff retryBackoff;
+
+    @Autowired
+    private OutboxBacklogIndex outboxBacklogIndex;
+
+    @Autowired
+    private Environment env;
+
+    @Autowired
+    private ObjectProvider<ObjectMapper> objectMapperProvider;
+
+    private ObjectMapper objectMapper;
+
+    @Value("${rest.messagebox.replay.concurrency:8}")
+    private int defaultConcurrency;
+
+    @Value("${rest.messagebox.replay.chunk-size:200}")
+    private int chunkSize;
+
+    @Value("${rest.messagebox.replay.bulk.max-size:50}")
+    private int bulkMaxSize;
+
+    @Value("${rest.messagebox.replay.bulk.max-wait-millis:100}")
+    private long bulkMaxWaitMillis;
+
+    @Value("${rest.messagebox.relay.max-attempts:10}")
+    private int defaultRelayMaxAttempts;
+
+    // Bulk uri per serviceMethodName, empty when the method is replayed one message per request
+    private final Map<String, String> bulkUris = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        objectMapper = objectMapperProvider.getIfAvailable(() -> new ObjectMapper().findAndRegisterModules());
+    }
+
+    // Drains pending messages chunk by chunk, ordered by id. A chunk is fetched only after the previous one
+    // has been replayed, so memory stays flat regardless of the size of the backlog.
+    public Mono<Long> drain(BiFunction<Long, Integer, List<RestMessage>> nextChunk, boolean inOrder) {
+        AtomicLong lastId = new AtomicLong(0L);
+        return Mono.fromCallable(() -> nextChunk.apply(lastId.get(), chunkSize))
+                .subscribeOn(Schedulers.boundedElastic())
+                .flatMap(chunk -> {
+                    if (chunk.isEmpty()) {
+                        return Mono.just(0);
+                    }
+                    lastId.set(chunk.get(chunk.size() - 1).getId());
+                    Flux<RestMessage> messages = Flux.fromIterable(chunk);
+                    return (inOrder ? replayInOrder(messages) : replay(messages)).thenReturn(chunk.size());
+                })
+                .repeat()
+                .takeWhile(size -> size > 0)
+                .reduce(0L, (drained, size) -> drained + size);
+    }
+
+    // Replays messages concurrently, up to the configured concurrency of each source service.
+    public Mono<Void> replay(Flux<RestMessage> messages) {
+        return replay(messages, false).then();
+    }
+
+    // Replay of the background relay, attempts are counted in schedulerRetryCount. Emits the number delivered.
+    public Mono<Long> relay(Flux<RestMessage> messages) {
+        return replay(messages, true)
+                .filter(message -> RestMessageStatus.SUCCESS.equals(message.getStatus()))
+                .count();
+    }
+
+    private Flux<RestMessage> replay(Flux<RestMessage> messages, boolean scheduled) {
+        return messages
+                .groupBy(message -> Util.isNull(message.getSourceService()) ? ServiceName.EXTERNAL : message.getSourceService())
+                .flatMap(group -> replay(group, concurrencyFor(group.key()), scheduled), ServiceName.values().length);
+    }
+
+    // Messages of one source service: methods with a bulk uri are buffered up to the bulk size or wait time and sent
+    // as one request per batch, all others go one request per message
+    private Flux<RestMessage> replay(Flux<RestMessage> messages, int concurrency, boolean scheduled) {
+        return messages
+                .groupBy(this::bulkUri)
+                .flatMap(byUri -> byUri.key().isEmpty()
+                        ? byUri.flatMap(message -> replay(message, scheduled), concurrency)
+                        : byUri.bufferTimeout(bulkMaxSize, Duration.ofMillis(bulkMaxWaitMillis))
+                                .flatMap(batch -> replayBulk(batch, byUri.key(), scheduled), concurrency), Integer.MAX_VALUE);
+    }
+
+    private String bulkUri(RestMessage message) {
+        String methodName = Util.isNull(message.getServiceMethodName()) ? "" : message.getServiceMethodName();
+        return bulkUris.computeIfAbsent(methodName, name -> name.isEmpty() ? "" : env.getProperty("rest.messagebox.replay.bulk.uri." + name, ""));
+    }
+
+    // Replays messages one after another, keeping the order in which they were emitted.
+    public Mono<Void> replayInOrder(Flux<RestMessage> messages) {
+        return messages.concatMap(this::replay).then();
+    }
+
+    public int concurrencyFor(ServiceName serviceName) {
+        return env.getProperty("rest.messagebox.replay.concurrency." + serviceName.name(), Integer.class, defaultConcurrency);
+    }
+
+    public int relayMaxAttemptsFor(ServiceName serviceName) {
+        return env.getProperty("rest.messagebox.relay.max-attempts." + serviceName.name(), Integer.class, defaultRelayMaxAttempts);
+    }
+
+    public Mono<RestMessage> replay(RestMessage message) {
+        return replay(message, false);
+    }
+
+    private Mono<RestMessage> replay(RestMessage message, boolean scheduled) {
+        log.info("processing outbox message ID: {}, name :{}", message.getId(), message.getServiceMethodName());
+        RestMessageStatus previousStatus = message.getStatus();
+        Timer.Sample sample = messageBoxMetrics.startTimer();
+        HTTPMethod httpMethod = Util.isNull(message.getHttpMethod()) ? HTTPMethod.POST : message.getHttpMethod();
+        WebClient.RequestBodySpec request = webClientFactory.webClientFor(message.getEndPointUrl())
+                .method(HttpMethod.valueOf(httpMethod.name()))
+                .uri(message.getEndPointUrl())
+                .contentType(MediaType.APPLICATION_JSON);
+        WebClient.RequestHeadersSpec<?> exchange = hasBody(httpMethod) && Util.isNotNull(message.getContent())
+                ? request.bodyValue(message.getContent())
+                : request;
+
+        return exchange.exchangeToMono(response -> response.releaseBody().thenReturn(response.statusCode()))
+                .map(status -> onResponse(message, status, scheduled))
+                .onErrorResume(ex -> Mono.just(onError(message, ex, scheduled)))
+                .flatMap(this::persist)
+                .doOnNext(replayed -> {
+                    outboxBacklogIndex.replayed(replayed, previousStatus);
+                    messageBoxMetrics.outboxReplayed(replayed, sample);
+                });
+    }
+
+    // The bulk endpoint receives the message contents as a JSON array. It answers either without a body, meaning every
+    // item shares the response status, or with an array of the same length holding an HTTP status per item, as a
+    // number or as {"status": 201, "message": "..."}.
+    private Flux<RestMessage> replayBulk(List<RestMessage> batch, String bulkUri, boolean scheduled) {
+        log.info("processing {} outbox messages of {} in one bulk request", batch.size(), batch.get(0).getServiceMethodName());
+        Map<Long, RestMessageStatus> previousStatuses = new HashMap<>();
+        batch.forEach(message -> previousStatuses.put(message.getId(), message.getStatus()));
+        Timer.Sample sample = messageBoxMetrics.startTimer();
+
+        return webClientFactory.webClientFor(bulkUri)
+                .post()
+                .uri(bulkUri)
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(bulkBody(batch))
+                .exchangeToMono(response -> response.bodyToMono(String.class)
+                        .defaultIfEmpty("")
+                        .map(body -> onBulkResponse(batch, response.statusCode(), body, scheduled)))
+                .onErrorResume(ex -> {
+                    batch.forEach(message -> onError(message, ex, scheduled));
+                    return Mono.just(batch);
+                })
+                .flatMap(this::persistAll)
+                .flatMapMany(replayed -> {
+                    replayed.forEach(message -> {
+                        outboxBacklogIndex.replayed(message, previousStatuses.get(message.getId()));
+                        messageBoxMetrics.outboxReplayed(message, sample);
+                    });
+                    return Flux.fromIterable(replayed);
+                });
+    }
+
+    private static String bulkBody(List<RestMessage> batch) {
+        // Contents are stored as JSON already, they are joined rather than parsed and written again
+        StringBuilder body = new StringBuilder();
+        body.append('[');
+        for (int i = 0; i < batch.size(); i++) {
+            if (i > 0) {
+                body.append(',');
+            }
+            body.append(Util.isNull(batch.get(i).getContent()) ? "null" : batch.get(i).getContent());
+        }
+        return body.append(']').toString();
+    }
+
+    private List<RestMessage> onBulkResponse(List<RestMessage> batch, HttpStatus status, String body, boolean scheduled) {
+        if (!status.is2xxSuccessful() || body.trim().isEmpty()) {
+            batch.forEach(message -> onResponse(message, status, scheduled));
+            return batch;
+        }
+        JsonNode results;
+        try {
+            results = objectMapper.readTree(body);
+        } catch (Exception e) {
+            results = null;
+        }
+        if (Util.isNull(results) || !results.isArray() || results.size() != batch.size()) {
+            // Which items went through is unknown, all of them are retried
+            IllegalStateException unmapped = new IllegalStateException("bulk response could not be mapped to " + batch.size() + " messages");
+            batch.forEach(message -> onError(message, unmapped, scheduled));
+            return batch;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            RestMessage message = batch.get(i);
+            JsonNode result = results.get(i);
+            HttpStatus itemStatus = HttpStatus.resolve(result.isNumber() ? result.asInt() : result.path("status").asInt());
+            if (Util.isNull(itemStatus)) {
+                onError(message, new IllegalStateException("bulk result without a valid status: " + result), scheduled);
+                continue;
+            }
+            onResponse(message, itemStatus, scheduled);
+            if (result.hasNonNull("message")) {
+                message.setResponseStatusMessage(result.get("message").asText());
+            }
+        }
+        return batch;
+    }
+
+    private static boolean hasBody(HTTPMethod httpMethod) {
+        return HTTPMethod.POST.equals(httpMethod) || HTTPMethod.PUT.equals(httpMethod);
+    }
+
+    private RestMessage onResponse(RestMessage message, HttpStatus status, boolean scheduled) {
+        message.setLastSendDateTime(LocalDateTime.now());
+        message.setResponseDateTime(LocalDateTime.now());
+        message.setReponseStatusCode(status.value());
+        message.setResponseStatusMessage(status.getReasonPhrase());
+        countAttempt(message, scheduled);
+        if (status.is2xxSuccessful()) {
+            // Set status as SUCCESS on successful call
+            message.setStatus(RestMessageStatus.SUCCESS);
+        } else {
+            log.error("Error processing {} request. Response status: {}", message.getHttpMethod(), status);
+            message.setNextAttemptAt(retryBackoff.nextAttemptAt(message));
+            exhaustIfRelayedOut(message, scheduled);
+        }
+        return message;
+    }
+
+    private RestMessage onError(RestMessage message, Throwable throwable, boolean scheduled) {
+        log.error("Error processing outbox message ID {}: {}", message.getId(), throwable.getMessage());
+        message.setLastSendDateTime(LocalDateTime.now());
+        message.setResponseStatusMessage(throwable.getMessage());
+        countAttempt(message, scheduled);
+        message.setNextAttemptAt(retryBackoff.nextAttemptAt(message));
+        exhaustIfRelayedOut(message, scheduled);
+        return message;
+    }
+
+    // Relay attempts have their own budget and leave the retry count of inline and circuit close replays alone until it is used up
+    private static void countAttempt(RestMessage message, boolean scheduled) {
+        if (scheduled) {
+            message.setSchedulerRetryCount(Util.isNull(message.getSchedulerRetryCount()) ? 1 : message.getSchedulerRetryCount() + 1);
+        } else {
+            message.setRetryCount(Util.isNull(message.getRetryCount()) ? 1 : message.getRetryCount() + 1);
+        }
+    }
+
+    // A message that used up its relay attempts gets the exhausted retry count, which retention archives and the
+    // backlog counters and pending queries leave out
+    private void exhaustIfRelayedOut(RestMessage message, boolean scheduled) {
+        ServiceName serviceName = Util.isNull(message.getSourceService()) ? ServiceName.EXTERNAL : message.getSourceService();
+        if (scheduled && message.getSchedulerRetryCount() >= relayMaxAttemptsFor(serviceName)) {
+            log.error("outbox message ID {} failed {} relay attempts, giving up", message.getId(), message.getSchedulerRetryCount());
+            message.setRetryCount(RestMessageService.MAX_RETRY_COUNT + 1);
+        }
+    }
+
+    // Empty when another replica took the message over after its lease expired, its outcome is stale
+    private Mono<RestMessage> persist(RestMessage message) {
+        return save(Collections.singletonList(message))
+                .onErrorResume(ex -> {
+                    log.error("Could not persist outbox message ID {}: {}", message.getId(), ex.getMessage());
+                    return Mono.just(Collections.singletonList(message));
+                })
+                .flatMap(saved -> saved.isEmpty() ? Mono.empty() : Mono.just(saved.get(0)));
+    }
+
+    // The outcome of a bulk request in one transaction, one by one when that fails
+    private Mono<List<RestMessage>> persistAll(List<RestMessage> messages) {
+        return save(messages)
+                .onErrorResume(ex -> {
+                    log.error("Could not persist {} bulk replayed outbox messages, saving one by one: {}", messages.size(), ex.getMessage());
+                    return Flux.fromIterable(messages).concatMap(this::persist).collectList();
+                });
+    }
+
+    // JPA is blocking, keep it off the event loop. Only outcomes of messages this replica still holds the lease on are written.
+    private Mono<List<RestMessage>> save(List<RestMessage> messages) {
+        return Mono.fromCallable(() -> {
+                    List<RestMessage> saved = restMessageService.saveLeasedRestMessages(messages);
+                    if (saved.size() < messages.size()) {
+                        log.warn("dropped the outcome of {} outbox messages, their lease was taken over by another replica", messages.size() - saved.size());
+                    }
+                    saved.forEach(this::forgetIfDone);
+                    return saved;
+                })
+                .subscribeOn(Schedulers.boundedElastic());
+    }
+
+    private void forgetIfDone(RestMessage message) {
+        if (RestMessageStatus.SUCCESS.equals(message.getStatus()) || message.getRetryCount() > RestMessageService.MAX_RETRY_COUNT) {
+            outboxDedupFilter.forget(message.getServiceMethodName(), message.getContentHash());
+        }
+    }
+}
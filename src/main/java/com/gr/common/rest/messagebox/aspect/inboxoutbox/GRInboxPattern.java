@@ -13,4 +13,11 @@ import java.lang.annotation.Target;
 public @interface GRInboxPattern {
     ServiceName serviceName();
     String methodName();
+
+    /**
+     * SpEL expression over the method arguments (#p0, #a0, #args or parameter names, e.g. a header bound with
+     * {@code @RequestHeader}) identifying redelivered requests. Empty means every call is processed. A redelivery gets
+     * the cached result of the first call, or a DuplicateInboxRequestException when that result is not available here.
+     */
+    String idempotencyKey() default "";
 }
@@ -1,5 +1,8 @@
 package com.gr.common.rest.messagebox.aspect.inboxoutbox;
 
+import com.gr.common.rest.messagebox.constants.GrSystem;
+import com.gr.common.rest.messagebox.constants.HTTPMethod;
+
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
@@ -10,4 +13,14 @@ import java.lang.annotation.Target;
 public @interface GROutboxPattern {
     String serviceName();
     String methodName();
+
+    //Target of the outgoing call, the first argument is sent as its JSON body. Needed for the message to be replayable.
+    String targetServiceBaseUrlProperty() default "";
+    String targetURI() default "";
+    HTTPMethod httpMethod() default HTTPMethod.POST;
+    GrSystem sourceSystem() default GrSystem.GRID2;
+
+    //When set true, the method body is not run: the call is written as an outbox message in the caller's transaction and
+    //sent once that transaction commits, see OutboxCommitDispatcher. The method must return void and have a target, checked at startup.
+    boolean transactional() default false;
 }
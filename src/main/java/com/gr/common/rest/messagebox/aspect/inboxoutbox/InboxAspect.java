@@ -2,24 +2,29 @@ package com.gr.common.rest.messagebox.aspect.inboxoutbox;
 
 import com.gr.common.rest.messagebox.constants.RequestProcessingStatus;
 import com.gr.common.rest.messagebox.entity.Inbox;
+import com.gr.common.rest.messagebox.exception.DuplicateInboxRequestException;
+import com.gr.common.rest.messagebox.metrics.MessageBoxMetrics;
 import com.gr.common.rest.messagebox.publisher.EventPublisher;
 import com.gr.common.rest.messagebox.repository.InboxRepository;
 import com.gr.common.v2.util.Util;
 import lombok.extern.slf4j.Slf4j;
-import org.aspectj.lang.JoinPoint;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
-import org.aspectj.lang.annotation.Before;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 
 @Aspect
@@ -33,58 +38,119 @@ public class InboxAspect {
     @Autowired
     private EventPublisher eventPublisher;
 
-    Inbox inbox = null;
+    @Autowired
+    private InboxIdempotencyRegistry inboxIdempotencyRegistry;
 
-    @Before("@annotation(GRInboxPattern)")
-    public void before(JoinPoint joinPoint, GRInboxPattern GRInboxPattern) {
-        log.info("Inbox pattern intercepted method : {} service: {} ", GRInboxPattern.methodName(), GRInboxPattern.serviceName());
+    @Autowired
+    private MessageBoxMetrics messageBoxMetrics;
+
+    // A PROCESSING record older than this, without a replay lease, is taken as abandoned by a crashed instance
+    @Value("${rest.messagebox.inbox.idempotency.processing-stale-millis:300000}")
+    private long processingStaleMillis;
 
-        Object[] args = joinPoint.getArgs();
-        Object requestDto = args.length > 0 ? args[0] : null;
-    }
     @Around("@annotation(GRInboxPattern)")
     @Transactional(propagation = Propagation.REQUIRES_NEW)
     public Object around(ProceedingJoinPoint proceedingJoinPoint, GRInboxPattern GRInboxPattern) throws Throwable {
         log.info("Inbox pattern intercepted method : {} service: {} ", GRInboxPattern.methodName(), GRInboxPattern.serviceName());
 
+        if (InboxReplayContext.consume()) {
+            return proceedingJoinPoint.proceed();
+        }
+
         Object[] args = proceedingJoinPoint.getArgs();
         Object requestDto = args.length > 0 ? args[0] : null;
+        String idempotencyKey = inboxIdempotencyRegistry.resolveKey(proceedingJoinPoint, GRInboxPattern);
+        if (Util.isNull(idempotencyKey)) {
+            return proceed(proceedingJoinPoint, GRInboxPattern, requestDto, randomId(), null, false);
+        }
+
+        // A redelivery of a request this instance is still running waits for that result instead of running again
+        CompletableFuture<Object> running = inboxIdempotencyRegistry.begin(idempotencyKey);
+        if (Util.isNotNull(running)) {
+            log.info("Inbox pattern request {} is already in flight, waiting for its result", idempotencyKey);
+            return inboxIdempotencyRegistry.awaitInFlight(idempotencyKey, running);
+        }
+        try {
+            InboxIdempotencyRegistry.CompletedResult completedResult = inboxIdempotencyRegistry.completedResult(idempotencyKey);
+            if (Util.isNotNull(completedResult)) {
+                log.info("Inbox pattern request {} already completed, returning the cached result", idempotencyKey);
+                inboxIdempotencyRegistry.release(idempotencyKey, completedResult.getResult());
+                return completedResult.getResult();
+            }
+            // Completed or running on another instance, whose result is not known here. A failed or abandoned attempt is
+            // retried under the same inbox id.
+            Optional<Inbox> existing = inboxRepository.findByIdempotencyKey(idempotencyKey);
+            if (existing.isPresent() && !isRetryable(existing.get())) {
+                log.info("Inbox pattern request {} is already {}, rejecting the duplicate", idempotencyKey, existing.get().getStatus());
+                throw new DuplicateInboxRequestException(idempotencyKey, "duplicate request " + idempotencyKey + " is already " + existing.get().getStatus());
+            }
+            Object result = proceed(proceedingJoinPoint, GRInboxPattern, requestDto, existing.map(Inbox::getId).orElseGet(this::randomId), idempotencyKey, existing.isPresent());
+            inboxIdempotencyRegistry.complete(idempotencyKey, result);
+            return result;
+        } catch (Throwable throwable) {
+            inboxIdempotencyRegistry.fail(idempotencyKey, throwable);
+            throw throwable;
+        }
+    }
+
+    private boolean isRetryable(Inbox inbox) {
+        if (RequestProcessingStatus.FAILURE.equals(inbox.getStatus())) {
+            return true;
+        }
+        if (!RequestProcessingStatus.PROCESSING.equals(inbox.getStatus())) {
+            return false;
+        }
+        LocalDateTime now = LocalDateTime.now();
+        if (Util.isNotNull(inbox.getLeaseExpiresAt())) {
+            return inbox.getLeaseExpiresAt().isBefore(now);
+        }
+        return Util.isNull(inbox.getCreateDateTime()) || inbox.getCreateDateTime().isBefore(now.minus(processingStaleMillis, ChronoUnit.MILLIS));
+    }
+
+    private String randomId() {
         // Generate a random UUID
         log.info("Generating random UUID");
         UUID randomUUID = UUID.randomUUID();
         // Convert the UUID to a string
         String randomUUIDStr = randomUUID.toString();
         // Print the random UUID as a string
-        System.out.println("random UUID: " + randomUUIDStr);
-
+        log.debug("random UUID: {}", randomUUIDStr);
+        return randomUUIDStr;
+    }
 
+    private Object proceed(ProceedingJoinPoint proceedingJoinPoint, GRInboxPattern GRInboxPattern, Object requestDto, String randomUUIDStr, String idempotencyKey, boolean retryOfFailure) throws Throwable {
+        messageBoxMetrics.inboxStarted();
         try {
-            eventPublisher.publishEventForInbox(randomUUIDStr, requestDto, GRInboxPattern.serviceName(), GRInboxPattern.methodName(), RequestProcessingStatus.PROCESSING);
+            eventPublisher.publishEventForInbox(randomUUIDStr, idempotencyKey, requestDto, GRInboxPattern.serviceName(), GRInboxPattern.methodName(), RequestProcessingStatus.PROCESSING);
             // Proceed with the method execution
 //            inbox = createRestMessage(randomUUIDStr, requestDto);
 //            inbox = inboxRepository.save(inbox);
 //            log.info("saved to inbox with id:" + inbox.getId());
             Object result = proceedingJoinPoint.proceed();
 //            log.info("marked inbox with id:" + inbox.getId() + " as success");
-            eventPublisher.publishEventForInbox(randomUUIDStr, requestDto, GRInboxPattern.serviceName(), GRInboxPattern.methodName(), RequestProcessingStatus.SUCCESS);
+            eventPublisher.publishEventForInbox(randomUUIDStr, idempotencyKey, requestDto, GRInboxPattern.serviceName(), GRInboxPattern.methodName(), RequestProcessingStatus.SUCCESS);
 
 //            inbox.setStatus(Inbox.Status.SUCCESS);
 //            inboxRepository.save(inbox);
+            if (retryOfFailure) {
+                messageBoxMetrics.inboxRecovered();
+            }
             // If the method execution is successful, return the result
             return result;
         } catch (Throwable throwable) {
             log.info("Inbox pattern intercepted failure while procession method : {} service {}", GRInboxPattern.methodName(), GRInboxPattern.serviceName());
+            messageBoxMetrics.inboxFailed(GRInboxPattern.serviceName(), retryOfFailure);
 
             if (Util.isNotNull(throwable.getLocalizedMessage())){
-                eventPublisher.publishEventForInboxOnFailure(randomUUIDStr, requestDto, GRInboxPattern.serviceName(), GRInboxPattern.methodName(), RequestProcessingStatus.FAILURE, throwable.getLocalizedMessage());
+                eventPublisher.publishEventForInboxOnFailure(randomUUIDStr, idempotencyKey, requestDto, GRInboxPattern.serviceName(), GRInboxPattern.methodName(), RequestProcessingStatus.FAILURE, throwable.getLocalizedMessage());
             } else if (Util.isNull(throwable.getLocalizedMessage()) && Util.isNotNull(throwable.getMessage())) {
-                eventPublisher.publishEventForInboxOnFailure(randomUUIDStr, requestDto, GRInboxPattern.serviceName(), GRInboxPattern.methodName(), RequestProcessingStatus.FAILURE, throwable.getMessage());
+                eventPublisher.publishEventForInboxOnFailure(randomUUIDStr, idempotencyKey, requestDto, GRInboxPattern.serviceName(), GRInboxPattern.methodName(), RequestProcessingStatus.FAILURE, throwable.getMessage());
             } else {
                 StringWriter sw = new StringWriter();
                 PrintWriter pw = new PrintWriter(sw);
                 throwable.printStackTrace(pw);
                 String sStackTrace = sw.toString(); // stack trace as a string
-                eventPublisher.publishEventForInboxOnFailure(randomUUIDStr, requestDto, GRInboxPattern.serviceName(), GRInboxPattern.methodName(), RequestProcessingStatus.FAILURE, sStackTrace);
+                eventPublisher.publishEventForInboxOnFailure(randomUUIDStr, idempotencyKey, requestDto, GRInboxPattern.serviceName(), GRInboxPattern.methodName(), RequestProcessingStatus.FAILURE, sStackTrace);
 
             }
 //            inbox.setReason(throwable.getLocalizedMessage());
@@ -92,6 +158,8 @@ public class InboxAspect {
 //            inboxRepository.save(inbox);
             // Rethrow the exception
             throw throwable;
+        } finally {
+            messageBoxMetrics.inboxFinished();
         }
     }
 
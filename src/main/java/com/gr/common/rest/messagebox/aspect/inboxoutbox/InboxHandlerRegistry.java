@@ -0,0 +1,103 @@
+package com.gr.common.rest.messagebox.aspect.inboxoutbox;
+
+import com.gr.common.rest.messagebox.constants.ServiceName;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.aop.scope.ScopedProxyUtils;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.factory.SmartInitializingSingleton;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.core.MethodIntrospector;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Type;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Registry of {@link GRInboxPattern} methods keyed by service and method name, built once all singletons exist so
+ * failed inbox records can be handed back to the method that received them.
+ */
+@Slf4j
+@Component
+public class InboxHandlerRegistry implements SmartInitializingSingleton {
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    private final Map<String, Handler> handlers = new ConcurrentHashMap<>();
+
+    @Override
+    public void afterSingletonsInstantiated() {
+        for (String beanName : applicationContext.getBeanDefinitionNames()) {
+            if (ScopedProxyUtils.isScopedTarget(beanName)) {
+                continue;
+            }
+            Class<?> beanType = applicationContext.getType(beanName);
+            if (beanType == null) {
+                continue;
+            }
+            Map<Method, GRInboxPattern> methods = MethodIntrospector.selectMethods(ClassUtils.getUserClass(beanType),
+                    (MethodIntrospector.MetadataLookup<GRInboxPattern>) method -> AnnotatedElementUtils.findMergedAnnotation(method, GRInboxPattern.class));
+            if (methods.isEmpty()) {
+                continue;
+            }
+            Object bean = applicationContext.getBean(beanName);
+            methods.forEach((method, GRInboxPattern) -> register(bean, method, GRInboxPattern));
+        }
+        log.info("registered {} inbox handlers", handlers.size());
+    }
+
+    private void register(Object bean, Method method, GRInboxPattern GRInboxPattern) {
+        // Invoked through the proxy so transactions and other advice still apply on replay
+        Handler handler = new Handler(bean, AopUtils.selectInvocableMethod(method, bean.getClass()));
+        Handler previous = handlers.putIfAbsent(key(GRInboxPattern.serviceName(), GRInboxPattern.methodName()), handler);
+        if (previous != null && !previous.method.equals(handler.method)) {
+            log.warn("inbox handler {} {} is declared twice, replaying to {}", GRInboxPattern.serviceName(), GRInboxPattern.methodName(), previous.method);
+        }
+    }
+
+    public Handler get(ServiceName serviceName, String methodName) {
+        return handlers.get(key(serviceName, methodName));
+    }
+
+    private static String key(ServiceName serviceName, String methodName) {
+        return serviceName + ":" + methodName;
+    }
+
+    public static final class Handler {
+        private final Object bean;
+        private final Method method;
+
+        private Handler(Object bean, Method method) {
+            this.bean = bean;
+            this.method = method;
+        }
+
+        // Type the request was captured from, InboxAspect records the first argument
+        public Type getRequestType() {
+            return method.getParameterCount() > 0 ? method.getGenericParameterTypes()[0] : null;
+        }
+
+        public Object invoke(Object request) throws Throwable {
+            Object[] args = new Object[method.getParameterCount()];
+            if (args.length > 0) {
+                args[0] = request;
+            }
+            try {
+                return method.invoke(bean, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return method.toString();
+        }
+    }
+}
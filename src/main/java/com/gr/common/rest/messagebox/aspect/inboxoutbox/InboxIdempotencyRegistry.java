@@ -0,0 +1,135 @@
+package com.gr.common.rest.messagebox.aspect.inboxoutbox;
+
+import com.gr.common.rest.messagebox.exception.DuplicateInboxRequestException;
+import com.gr.common.v2.util.Util;
+import lombok.extern.slf4j.Slf4j;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.expression.MethodBasedEvaluationContext;
+import org.springframework.core.DefaultParameterNameDiscoverer;
+import org.springframework.core.ParameterNameDiscoverer;
+import org.springframework.expression.Expression;
+import org.springframework.expression.ExpressionParser;
+import org.springframework.expression.spel.standard.SpelExpressionParser;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tracks idempotency keys of {@link GRInboxPattern} calls: which are in flight in this JVM and the results of
+ * recently completed ones, so duplicates can be answered without running the handler again.
+ */
+@Slf4j
+@Component
+public class InboxIdempotencyRegistry {
+
+    @Value("${rest.messagebox.inbox.idempotency.result-cache-size:10000}")
+    private int resultCacheSize;
+
+    @Value("${rest.messagebox.inbox.idempotency.result-ttl-millis:600000}")
+    private long resultTtlMillis;
+
+    @Value("${rest.messagebox.inbox.idempotency.in-flight-wait-millis:30000}")
+    private long inFlightWaitMillis;
+
+    private final ExpressionParser parser = new SpelExpressionParser();
+
+    private final ParameterNameDiscoverer parameterNameDiscoverer = new DefaultParameterNameDiscoverer();
+
+    private final Map<String, Expression> expressions = new ConcurrentHashMap<>();
+
+    private final Map<String, CompletableFuture<Object>> inFlight = new ConcurrentHashMap<>();
+
+    private final Map<String, CompletedResult> results = new LinkedHashMap<String, CompletedResult>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompletedResult> eldest) {
+            return size() > resultCacheSize;
+        }
+    };
+
+    // Evaluates the SpEL key expression against the call arguments (#p0, #a0, #args or parameter names)
+    public String resolveKey(ProceedingJoinPoint proceedingJoinPoint, GRInboxPattern GRInboxPattern) {
+        if (GRInboxPattern.idempotencyKey().isEmpty()) {
+            return null;
+        }
+        MethodBasedEvaluationContext context = new MethodBasedEvaluationContext(null,
+                ((MethodSignature) proceedingJoinPoint.getSignature()).getMethod(), proceedingJoinPoint.getArgs(), parameterNameDiscoverer);
+        context.setVariable("args", proceedingJoinPoint.getArgs());
+        Object key = expressions.computeIfAbsent(GRInboxPattern.idempotencyKey(), parser::parseExpression).getValue(context);
+        if (Util.isNull(key)) {
+            return null;
+        }
+        return GRInboxPattern.serviceName() + ":" + GRInboxPattern.methodName() + ":" + key;
+    }
+
+    // Registers the key as in flight. Returns the future of the call already running for it, or null if there is none.
+    public CompletableFuture<Object> begin(String key) {
+        return inFlight.putIfAbsent(key, new CompletableFuture<>());
+    }
+
+    // A duplicate that outlives the wait fails, so the sender redelivers it instead of taking null as the result
+    public Object awaitInFlight(String key, CompletableFuture<Object> running) throws Throwable {
+        try {
+            return running.get(inFlightWaitMillis, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        } catch (TimeoutException e) {
+            throw new DuplicateInboxRequestException(key, "duplicate request " + key + " still in flight after " + inFlightWaitMillis + "ms", e);
+        }
+    }
+
+    public synchronized CompletedResult completedResult(String key) {
+        CompletedResult completedResult = results.get(key);
+        if (Util.isNotNull(completedResult) && System.currentTimeMillis() - completedResult.completedAt > resultTtlMillis) {
+            results.remove(key);
+            return null;
+        }
+        return completedResult;
+    }
+
+    public void complete(String key, Object result) {
+        synchronized (this) {
+            results.put(key, new CompletedResult(result));
+        }
+        release(key, result);
+    }
+
+    // Ends the in-flight entry without caching a result, e.g. when the duplicate was detected in the database
+    public void release(String key, Object result) {
+        CompletableFuture<Object> running = inFlight.remove(key);
+        if (Util.isNotNull(running)) {
+            running.complete(result);
+        }
+    }
+
+    public void fail(String key, Throwable throwable) {
+        CompletableFuture<Object> running = inFlight.remove(key);
+        if (Util.isNotNull(running)) {
+            running.completeExceptionally(throwable);
+        }
+    }
+
+    public int inFlightCount() {
+        return inFlight.size();
+    }
+
+    public static final class CompletedResult {
+        private final Object result;
+        private final long completedAt = System.currentTimeMillis();
+
+        private CompletedResult(Object result) {
+            this.result = result;
+        }
+
+        public Object getResult() {
+            return result;
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package com.gr.common.rest.messagebox.aspect.inboxoutbox;
+
+/**
+ * Marks handler invocations made by {@link InboxReplayEngine}. The replayed record already exists, so
+ * {@link InboxAspect} lets the call through without recording a new one.
+ */
+public final class InboxReplayContext {
+
+    private static final ThreadLocal<Boolean> REPLAYING = new ThreadLocal<>();
+
+    private InboxReplayContext() {
+    }
+
+    // Only the outermost advised call is the replayed one, nested inbox calls are recorded as usual
+    static boolean consume() {
+        boolean replaying = Boolean.TRUE.equals(REPLAYING.get());
+        REPLAYING.remove();
+        return replaying;
+    }
+
+    public static Object replay(InboxHandlerRegistry.Handler handler, Object request) throws Throwable {
+        REPLAYING.set(Boolean.TRUE);
+        try {
+            return handler.invoke(request);
+        } finally {
+            REPLAYING.remove();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package com.gr.common.rest.messagebox.aspect.inboxoutbox;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.gr.common.rest.messagebox.entity.Inbox;
+import com.gr.common.rest.messagebox.service.InboxService;
+import com.gr.common.v2.util.Util;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Replays FAILURE inbox records to their {@link GRInboxPattern} handler. Records are claimed in chunks and spread
+ * over single-threaded lanes by idempotency key (or id), so redeliveries of one request never run concurrently.
+ */
+@Slf4j
+@Component
+public class InboxReplayEngine {
+
+    @Autowired
+    private InboxHandlerRegistry inboxHandlerRegistry;
+
+    @Autowired
+    private InboxService inboxService;
+
+    @Autowired
+    private ObjectProvider<ObjectMapper> objectMapperProvider;
+
+    @Value("${rest.messagebox.inbox.replay.enabled:false}")
+    private boolean enabled;
+
+    @Value("${rest.messagebox.inbox.replay.parallelism:4}")
+    private int parallelism;
+
+    @Value("${rest.messagebox.inbox.replay.chunk-size:100}")
+    private int chunkSize;
+
+    @Value("${rest.messagebox.inbox.replay.interval-millis:60000}")
+    private long intervalMillis;
+
+    private ObjectMapper objectMapper;
+
+    private ExecutorService[] lanes;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        objectMapper = objectMapperProvider.getIfAvailable(() -> new ObjectMapper().findAndRegisterModules());
+        if (!enabled) {
+            return;
+        }
+        lanes = new ExecutorService[Math.max(1, parallelism)];
+        for (int i = 0; i < lanes.length; i++) {
+            String name = "inbox-replay-" + i;
+            lanes[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "inbox-replay-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::replayFailedSafely, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        log.info("inbox replay enabled on {} lanes every {}ms", lanes.length, intervalMillis);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (Util.isNull(scheduler)) {
+            return;
+        }
+        scheduler.shutdownNow();
+        for (ExecutorService lane : lanes) {
+            lane.shutdownNow();
+        }
+    }
+
+    private void replayFailedSafely() {
+        try {
+            int replayed = replayFailed();
+            if (replayed > 0) {
+                log.info("replayed {} failed inbox records", replayed);
+            }
+        } catch (Exception e) {
+            log.error("inbox replay failed: {}", e.getMessage(), e);
+        }
+    }
+
+    // Keyset drain over the claimable records, each chunk completes before the next one is claimed
+    public int replayFailed() throws InterruptedException {
+        String lastId = "";
+        int replayed = 0;
+        List<Inbox> chunk;
+        while (!(chunk = inboxService.claimFailedInboxMessages(lastId, chunkSize)).isEmpty()) {
+            lastId = chunk.get(chunk.size() - 1).getId();
+            List<Future<?>> futures = new ArrayList<>(chunk.size());
+            for (Inbox inbox : chunk) {
+                futures.add(lanes[partition(inbox)].submit(() -> replay(inbox)));
+            }
+            for (Future<?> future : futures) {
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    log.error("inbox replay task failed: {}", e.getCause().getMessage(), e.getCause());
+                }
+            }
+            replayed += chunk.size();
+        }
+        return replayed;
+    }
+
+    private int partition(Inbox inbox) {
+        String key = Util.isNotNull(inbox.getIdempotencyKey()) ? inbox.getIdempotencyKey() : inbox.getId();
+        return Math.floorMod(key.hashCode(), lanes.length);
+    }
+
+    private void replay(Inbox inbox) {
+        InboxHandlerRegistry.Handler handler = inboxHandlerRegistry.get(inbox.getServiceName(), inbox.getMethodName());
+        if (Util.isNull(handler)) {
+            log.warn("no inbox handler for {} {}, record {} left as failed", inbox.getServiceName(), inbox.getMethodName(), inbox.getId());
+            inboxService.markReplayFailed(inbox, "No @GRInboxPattern handler registered");
+            return;
+        }
+        try {
+            InboxReplayContext.replay(handler, readRequest(inbox, handler.getRequestType()));
+            inboxService.markReplayed(inbox);
+            log.info("replayed inbox record {} to {}", inbox.getId(), handler);
+        } catch (Throwable throwable) {
+            log.error("replay #{} of inbox record {} failed: {}", inbox.getRetryCount(), inbox.getId(), throwable.getMessage());
+            inboxService.markReplayFailed(inbox, Util.isNotNull(throwable.getMessage()) ? throwable.getMessage() : throwable.toString());
+        }
+    }
+
+    private Object readRequest(Inbox inbox, Type requestType) throws Exception {
+        if (Util.isNull(requestType) || Util.isNull(inbox.getContent())) {
+            return null;
+        }
+        return objectMapper.readValue(inbox.getContent(), objectMapper.constructType(requestType));
+    }
+}
@@ -1,33 +1,95 @@
 package com.gr.common.rest.messagebox.aspect.inboxoutbox;
 
+import com.gr.common.rest.messagebox.aspect.cricuitbreaker.event.OutboxCommitDispatcher;
 import com.gr.common.rest.messagebox.constants.RestMessageStatus;
+import com.gr.common.rest.messagebox.constants.ServiceName;
 import com.gr.common.rest.messagebox.constants.Type;
 import com.gr.common.rest.messagebox.entity.RestMessage;
-import com.gr.common.rest.messagebox.service.RestMessageService;
+import com.gr.common.rest.messagebox.serializer.CaptureSerializer;
+import com.gr.common.rest.messagebox.service.OutboxCaptureService;
 import com.gr.common.v2.exception.ApiException;
-import com.gr.grid.common.util.JsonUtil;
+import com.gr.common.v2.util.Util;
 import lombok.extern.slf4j.Slf4j;
 import org.aspectj.lang.ProceedingJoinPoint;
 import org.aspectj.lang.annotation.Around;
 import org.aspectj.lang.annotation.Aspect;
+import org.springframework.aop.scope.ScopedProxyUtils;
+import org.springframework.beans.factory.SmartInitializingSingleton;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.ApplicationContext;
+import org.springframework.core.MethodIntrospector;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.core.env.Environment;
 import org.springframework.stereotype.Component;
+import org.springframework.util.ClassUtils;
 
+import java.lang.reflect.Method;
 import java.time.LocalDateTime;
+import java.util.Map;
 
 @Aspect
 @Component
 @Slf4j
-public class OutboxAspect {
+public class OutboxAspect implements SmartInitializingSingleton {
 
     @Autowired
-    private RestMessageService restMessageService;
+    private OutboxCaptureService outboxCaptureService;
+
+    @Autowired
+    private CaptureSerializer captureSerializer;
+
+    @Autowired
+    private OutboxCommitDispatcher outboxCommitDispatcher;
+
+    @Autowired
+    private Environment env;
+
+    @Autowired
+    private ApplicationContext applicationContext;
+
+    // A transactional method is never run and only known by its outbox message, so a message that cannot be sent
+    // or a caller expecting a result fails the startup instead of the first call
+    @Override
+    public void afterSingletonsInstantiated() {
+        for (String beanName : applicationContext.getBeanDefinitionNames()) {
+            if (ScopedProxyUtils.isScopedTarget(beanName)) {
+                continue;
+            }
+            Class<?> beanType = applicationContext.getType(beanName);
+            if (beanType == null) {
+                continue;
+            }
+            Map<Method, GROutboxPattern> methods = MethodIntrospector.selectMethods(ClassUtils.getUserClass(beanType),
+                    (MethodIntrospector.MetadataLookup<GROutboxPattern>) method -> AnnotatedElementUtils.findMergedAnnotation(method, GROutboxPattern.class));
+            methods.forEach((method, GROutboxPattern) -> {
+                if (GROutboxPattern.transactional()) {
+                    validateTransactional(method, GROutboxPattern);
+                }
+            });
+        }
+    }
+
+    private void validateTransactional(Method method, GROutboxPattern GROutboxPattern) {
+        if (Util.isNull(endPointUrl(GROutboxPattern))) {
+            throw new IllegalStateException("@GROutboxPattern(transactional = true) on " + method + " has no target, set targetURI"
+                    + (GROutboxPattern.targetServiceBaseUrlProperty().isEmpty() ? "" : " or property " + GROutboxPattern.targetServiceBaseUrlProperty()));
+        }
+        if (!void.class.equals(method.getReturnType()) && !Void.class.equals(method.getReturnType())) {
+            throw new IllegalStateException("@GROutboxPattern(transactional = true) on " + method + " must return void, the method is not run");
+        }
+    }
 
     @Around("@annotation(GROutboxPattern)")
     public Object around(ProceedingJoinPoint proceedingJoinPoint, GROutboxPattern GROutboxPattern) throws Throwable {
         Object[] args = proceedingJoinPoint.getArgs();
         Object requestDto = args.length > 0 ? args[0] : null;
 
+        if (GROutboxPattern.transactional()) {
+            // Enlisted in the caller's transaction and sent after it commits
+            outboxCommitDispatcher.enlist(createRestMessage(GROutboxPattern, requestDto, RestMessageStatus.NEW));
+            return null;
+        }
+
         try {
             // Proceed with the method execution
             Object result = proceedingJoinPoint.proceed();
@@ -38,8 +100,8 @@ public class OutboxAspect {
             // Check if the exception is not ApiException
             if (!(throwable instanceof ApiException)) {
                 // Store the input in a RestMessage
-                RestMessage restMessage = createRestMessage(GROutboxPattern, requestDto);
-                restMessageService.saveRestMessage(restMessage);
+                RestMessage restMessage = createRestMessage(GROutboxPattern, requestDto, RestMessageStatus.FAILURE);
+                outboxCaptureService.capture(restMessage);
             }
 
             // Rethrow the exception
@@ -47,17 +109,43 @@ public class OutboxAspect {
         }
     }
 
-    private RestMessage createRestMessage(GROutboxPattern GROutboxPattern, Object requestDto) {
+    private RestMessage createRestMessage(GROutboxPattern GROutboxPattern, Object requestDto, RestMessageStatus status) {
         // Create a RestMessage object with the necessary details
         // Set the content, endpoint, method name, etc.
         // Customize it based on your requirements
 
+        CaptureSerializer.Captured content = captureSerializer.capture(requestDto);
         return RestMessage.builder()
-                .content(JsonUtil.toJson(requestDto))
+                .content(content.getJson())
+                .contentHash(content.getContentHash())
                 .contentType("JSON")
+                .endPointUrl(endPointUrl(GROutboxPattern))
+                .httpMethod(GROutboxPattern.httpMethod())
                 .type(Type.OUTBOX)
                 .createDateTime(LocalDateTime.now())
-                .status(RestMessageStatus.FAILURE)
+                .status(status)
+                .retryCount(0)
+                .sourceSystem(GROutboxPattern.sourceSystem())
+                .sourceService(sourceService(GROutboxPattern.serviceName()))
+                .serviceMethodName(GROutboxPattern.methodName())
                 .build();
     }
+
+    private String endPointUrl(GROutboxPattern GROutboxPattern) {
+        if (GROutboxPattern.targetServiceBaseUrlProperty().isEmpty()) {
+            return GROutboxPattern.targetURI().isEmpty() ? null : GROutboxPattern.targetURI();
+        }
+        String targetServiceURL = env.getProperty(GROutboxPattern.targetServiceBaseUrlProperty());
+        return Util.isNull(targetServiceURL) ? null : targetServiceURL + GROutboxPattern.targetURI();
+    }
+
+    // serviceName is free text on this annotation, names outside ServiceName are replayed as EXTERNAL
+    private static ServiceName sourceService(String serviceName) {
+        for (ServiceName candidate : ServiceName.values()) {
+            if (candidate.name().equalsIgnoreCase(serviceName)) {
+                return candidate;
+            }
+        }
+        return ServiceName.EXTERNAL;
+    }
 }
@@ -0,0 +1,135 @@
+package com.gr.common.rest.messagebox.config;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.binder.jvm.ExecutorServiceMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Collections;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Executor for inbox event persistence. It is bounded: when the queue is full, or all virtual-thread permits are
+ * taken, the event is persisted synchronously on the publishing thread instead of spawning another thread.
+ */
+@Slf4j
+@Component
+public class InboxEventExecutor {
+
+    private static final String METRIC_NAME = "rest.messagebox.inbox.executor";
+
+    @Autowired
+    private ObjectProvider<MeterRegistry> meterRegistryProvider;
+
+    @Value("${rest.messagebox.inbox.executor.core-pool-size:4}")
+    private int corePoolSize;
+
+    @Value("${rest.messagebox.inbox.executor.max-pool-size:16}")
+    private int maxPoolSize;
+
+    @Value("${rest.messagebox.inbox.executor.queue-capacity:1000}")
+    private int queueCapacity;
+
+    @Value("${rest.messagebox.inbox.executor.keep-alive-seconds:60}")
+    private long keepAliveSeconds;
+
+    // Only honoured on JDK 21+, older runtimes keep the platform thread pool
+    @Value("${rest.messagebox.inbox.executor.virtual-threads:false}")
+    private boolean virtualThreads;
+
+    @Value("${rest.messagebox.inbox.executor.virtual-max-concurrency:1000}")
+    private int virtualMaxConcurrency;
+
+    private ExecutorService executor;
+
+    private Semaphore virtualPermits;
+
+    private Counter callerRuns;
+
+    @PostConstruct
+    public void init() {
+        MeterRegistry meterRegistry = meterRegistryProvider.getIfAvailable(() -> Metrics.globalRegistry);
+        callerRuns = meterRegistry.counter(METRIC_NAME + ".caller.runs");
+
+        ExecutorService virtualExecutor = virtualThreads ? newVirtualThreadPerTaskExecutor() : null;
+        if (virtualExecutor != null) {
+            virtualPermits = new Semaphore(virtualMaxConcurrency);
+            executor = virtualExecutor;
+            log.info("inbox events run on virtual threads, max concurrency {}", virtualMaxConcurrency);
+        } else {
+            AtomicInteger threadCount = new AtomicInteger();
+            executor = new ThreadPoolExecutor(corePoolSize, maxPoolSize, keepAliveSeconds, TimeUnit.SECONDS,
+                    new ArrayBlockingQueue<>(queueCapacity),
+                    runnable -> {
+                        Thread thread = new Thread(runnable, "inbox-event-" + threadCount.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    },
+                    (task, pool) -> runOnCaller(task));
+            log.info("inbox events run on a pool of {}-{} threads, queue capacity {}", corePoolSize, maxPoolSize, queueCapacity);
+        }
+        executor = ExecutorServiceMetrics.monitor(meterRegistry, executor, METRIC_NAME, Collections.emptyList());
+    }
+
+    public void execute(Runnable command) {
+        // Failures are logged here, with caller-runs they would otherwise surface in the publishing request
+        Runnable task = () -> {
+            try {
+                command.run();
+            } catch (Exception e) {
+                log.error("inbox event task failed: {}", e.getMessage(), e);
+            }
+        };
+        if (virtualPermits == null) {
+            executor.execute(task);
+        } else if (virtualPermits.tryAcquire()) {
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    virtualPermits.release();
+                }
+            });
+        } else {
+            runOnCaller(task);
+        }
+    }
+
+    private void runOnCaller(Runnable task) {
+        // Degrade to synchronous persistence, this also slows the producer down
+        callerRuns.increment();
+        task.run();
+    }
+
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn("virtual threads are not available on this JVM, falling back to a thread pool");
+            return null;
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
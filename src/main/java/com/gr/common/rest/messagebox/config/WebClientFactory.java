@@ -3,32 +3,107 @@ package com.gr.common.rest.messagebox.config;
 import io.netty.channel.ChannelOption;
 import io.netty.handler.logging.LogLevel;
 import io.netty.handler.timeout.ReadTimeoutHandler;
-import org.springframework.context.annotation.Bean;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.client.reactive.ReactorClientHttpConnector;
 import org.springframework.stereotype.Component;
 import org.springframework.web.reactive.function.client.WebClient;
 import reactor.netty.http.client.HttpClient;
+import reactor.netty.resources.ConnectionProvider;
 import reactor.netty.transport.logging.AdvancedByteBufFormat;
 
-
+import javax.annotation.PreDestroy;
+import java.net.URI;
 import java.nio.charset.StandardCharsets;
 import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
+@Slf4j
 @Component
 public class WebClientFactory {
 
     private static final int TIMEOUT = 90000;
 
+    @Value("${rest.messagebox.webclient.max-connections:50}")
+    private int maxConnections;
+
+    @Value("${rest.messagebox.webclient.max-idle-time-millis:30000}")
+    private long maxIdleTimeMillis;
+
+    @Value("${rest.messagebox.webclient.max-life-time-millis:300000}")
+    private long maxLifeTimeMillis;
+
+    @Value("${rest.messagebox.webclient.pending-acquire-max-count:500}")
+    private int pendingAcquireMaxCount;
+
+    @Value("${rest.messagebox.webclient.pending-acquire-timeout-millis:45000}")
+    private long pendingAcquireTimeoutMillis;
+
+    @Value("${rest.messagebox.webclient.wiretap-enabled:false}")
+    private boolean wiretapEnabled;
+
+    // One client and connection pool per origin (scheme, host and port), so replay and live calls reuse warm keep-alive
+    // connections instead of building a new stack per message. Keyed by origin only, endpoint urls may carry ids.
+    private final Map<String, WebClient> webClients = new ConcurrentHashMap<>();
+
+    private final Map<String, HttpClient> httpClients = new ConcurrentHashMap<>();
+
+    private final Map<String, ConnectionProvider> connectionProviders = new ConcurrentHashMap<>();
+
+    // Shared client of the url's origin without a base url, requests pass the full url
+    public WebClient webClientFor(String url) {
+        return webClients.computeIfAbsent(origin(url), origin -> WebClient.builder()
+                .clientConnector(new ReactorClientHttpConnector(httpClients.computeIfAbsent(origin, this::newHttpClient)))
+                .build());
+    }
+
+    // Client with a base url on the shared pool of its origin. Not cached, prefer webClientFor with the full url.
     public WebClient createWebClient(String baseUrl) {
-        HttpClient httpClient = HttpClient.create()
-                .wiretap("reactor.netty.http.client.HttpClient", LogLevel.TRACE, AdvancedByteBufFormat.TEXTUAL, StandardCharsets.UTF_8)
+        return webClientFor(baseUrl).mutate().baseUrl(baseUrl).build();
+    }
+
+    private HttpClient newHttpClient(String origin) {
+        log.info("creating pooled http client for {}, maxConnections {}", origin, maxConnections);
+        ConnectionProvider connectionProvider = ConnectionProvider.builder("rest-message-box-" + origin)
+                .maxConnections(maxConnections)
+                .maxIdleTime(Duration.ofMillis(maxIdleTimeMillis))
+                .maxLifeTime(Duration.ofMillis(maxLifeTimeMillis))
+                .pendingAcquireMaxCount(pendingAcquireMaxCount)
+                .pendingAcquireTimeout(Duration.ofMillis(pendingAcquireTimeoutMillis))
+                .evictInBackground(Duration.ofMillis(maxIdleTimeMillis))
+                .build();
+
+        HttpClient httpClient = HttpClient.create(connectionProvider)
                 .option(ChannelOption.CONNECT_TIMEOUT_MILLIS, TIMEOUT)
                 .responseTimeout(Duration.ofMillis(TIMEOUT))
-                .doOnConnected(conn -> conn.addHandler(new ReadTimeoutHandler(TIMEOUT)));
+                .doOnConnected(conn -> conn.addHandlerLast(new ReadTimeoutHandler(TIMEOUT, TimeUnit.MILLISECONDS)));
+        // Byte level wiretap is expensive, only turn it on when explicitly asked for
+        if (wiretapEnabled) {
+            httpClient = httpClient.wiretap("reactor.netty.http.client.HttpClient", LogLevel.TRACE, AdvancedByteBufFormat.TEXTUAL, StandardCharsets.UTF_8);
+        }
+        connectionProviders.put(origin, connectionProvider);
+        return httpClient;
+    }
 
-        return WebClient.builder()
-                .baseUrl(baseUrl)
-                .clientConnector(new ReactorClientHttpConnector(httpClient))
-                .build();
+    private static String origin(String baseUrl) {
+        try {
+            URI uri = URI.create(baseUrl);
+            if (uri.getScheme() == null || uri.getHost() == null) {
+                return baseUrl;
+            }
+            return uri.getScheme() + "://" + uri.getHost() + (uri.getPort() == -1 ? "" : ":" + uri.getPort());
+        } catch (IllegalArgumentException e) {
+            return baseUrl;
+        }
+    }
+
+    @PreDestroy
+    public void dispose() {
+        connectionProviders.values().forEach(ConnectionProvider::dispose);
+        connectionProviders.clear();
+        httpClients.clear();
+        webClients.clear();
     }
 }
@@ -0,0 +1,5 @@
+package com.gr.common.rest.messagebox.constants;
+
+public enum CaptureDurability {
+    BLOCK_UNTIL_FLUSHED, FIRE_AND_FORGET
+}
@@ -0,0 +1,5 @@
+package com.gr.common.rest.messagebox.constants;
+
+public enum RetentionAction {
+    DELETE, ARCHIVE
+}
@@ -0,0 +1,137 @@
+package com.gr.common.rest.messagebox.dedup;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Stable 128 bit MurmurHash3 (x64 variant) of a serialized payload, rendered as 32 hex characters.
+ * The same payload always yields the same hash across JVMs and restarts, so it can be stored in
+ * {@code RestMessage.contentHash} and compared later.
+ */
+public final class ContentHash {
+
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private final long h1;
+    private final long h2;
+
+    private ContentHash(long h1, long h2) {
+        this.h1 = h1;
+        this.h2 = h2;
+    }
+
+    public static ContentHash of(String content) {
+        return of(content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static ContentHash of(byte[] data) {
+        return of(data, 0, data.length);
+    }
+
+    public static ContentHash of(byte[] data, int offset, int length) {
+        long h1 = 0;
+        long h2 = 0;
+        int blocks = length / 16;
+        for (int i = 0; i < blocks; i++) {
+            int index = offset + i * 16;
+            long k1 = getLong(data, index);
+            long k2 = getLong(data, index + 8);
+
+            h1 ^= mixK1(k1);
+            h1 = Long.rotateLeft(h1, 27);
+            h1 += h2;
+            h1 = h1 * 5 + 0x52dce729;
+
+            h2 ^= mixK2(k2);
+            h2 = Long.rotateLeft(h2, 31);
+            h2 += h1;
+            h2 = h2 * 5 + 0x38495ab5;
+        }
+
+        int tail = offset + blocks * 16;
+        long k1 = 0;
+        long k2 = 0;
+        switch (length & 15) {
+            case 15: k2 ^= ((long) data[tail + 14] & 0xff) << 48;
+            case 14: k2 ^= ((long) data[tail + 13] & 0xff) << 40;
+            case 13: k2 ^= ((long) data[tail + 12] & 0xff) << 32;
+            case 12: k2 ^= ((long) data[tail + 11] & 0xff) << 24;
+            case 11: k2 ^= ((long) data[tail + 10] & 0xff) << 16;
+            case 10: k2 ^= ((long) data[tail + 9] & 0xff) << 8;
+            case 9:
+                k2 ^= (long) data[tail + 8] & 0xff;
+                h2 ^= mixK2(k2);
+            case 8: k1 ^= ((long) data[tail + 7] & 0xff) << 56;
+            case 7: k1 ^= ((long) data[tail + 6] & 0xff) << 48;
+            case 6: k1 ^= ((long) data[tail + 5] & 0xff) << 40;
+            case 5: k1 ^= ((long) data[tail + 4] & 0xff) << 32;
+            case 4: k1 ^= ((long) data[tail + 3] & 0xff) << 24;
+            case 3: k1 ^= ((long) data[tail + 2] & 0xff) << 16;
+            case 2: k1 ^= ((long) data[tail + 1] & 0xff) << 8;
+            case 1:
+                k1 ^= (long) data[tail] & 0xff;
+                h1 ^= mixK1(k1);
+            default:
+                break;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = fmix64(h1);
+        h2 = fmix64(h2);
+        h1 += h2;
+        h2 += h1;
+        return new ContentHash(h1, h2);
+    }
+
+    public long getH1() {
+        return h1;
+    }
+
+    public long getH2() {
+        return h2;
+    }
+
+    public String toHex() {
+        return String.format("%016x%016x", h1, h2);
+    }
+
+    // Restores a hash previously rendered with toHex, e.g. read back from RestMessage.contentHash
+    public static ContentHash fromHex(String hex) {
+        return new ContentHash(Long.parseUnsignedLong(hex.substring(0, 16), 16), Long.parseUnsignedLong(hex.substring(16, 32), 16));
+    }
+
+    private static long getLong(byte[] data, int index) {
+        return ((long) data[index] & 0xff)
+                | ((long) data[index + 1] & 0xff) << 8
+                | ((long) data[index + 2] & 0xff) << 16
+                | ((long) data[index + 3] & 0xff) << 24
+                | ((long) data[index + 4] & 0xff) << 32
+                | ((long) data[index + 5] & 0xff) << 40
+                | ((long) data[index + 6] & 0xff) << 48
+                | ((long) data[index + 7] & 0xff) << 56;
+    }
+
+    private static long mixK1(long k1) {
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        return k1 * C2;
+    }
+
+    private static long mixK2(long k2) {
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        return k2 * C1;
+    }
+
+    private static long fmix64(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb9fe1a85ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,203 @@
+package com.gr.common.rest.messagebox.dedup;
+
+import com.gr.common.rest.messagebox.service.RestMessageService;
+import com.gr.common.v2.util.Util;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Detects duplicate outbox captures per service method name without a database round trip in the common case.
+ * A recently captured hash (LRU) is a duplicate. A hash the Bloom filter has never seen is definitely new.
+ * Only a Bloom filter hit is checked against the database. The filters are loaded with the hashes of the pending
+ * outbox at startup, so messages captured before a restart or by another replica are found; until then every
+ * capture is checked against the database.
+ */
+@Slf4j
+@Component
+public class OutboxDedupFilter {
+
+    @Autowired
+    private RestMessageService restMessageService;
+
+    @Value("${rest.messagebox.dedup.enabled:true}")
+    private boolean enabled;
+
+    @Value("${rest.messagebox.dedup.bloom-bits:1048576}")
+    private int bloomBits;
+
+    @Value("${rest.messagebox.dedup.bloom-hashes:4}")
+    private int bloomHashes;
+
+    @Value("${rest.messagebox.dedup.recent-size:1024}")
+    private int recentSize;
+
+    @Value("${rest.messagebox.dedup.recent-ttl-millis:60000}")
+    private long recentTtlMillis;
+
+    private final Map<String, MethodFilter> filters = new ConcurrentHashMap<>();
+
+    private volatile boolean seeded;
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void seed() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            int loaded = 0;
+            for (Object[] row : restMessageService.getPendingContentHashes()) {
+                filter((String) row[0]).add(ContentHash.fromHex((String) row[1]));
+                loaded++;
+            }
+            seeded = true;
+            log.info("outbox dedup filters loaded with {} pending content hashes", loaded);
+        } catch (Exception e) {
+            log.warn("could not load pending content hashes, every outbox capture is checked against the database: {}", e.getMessage());
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    // Checks and records a capture in one step: of two concurrent identical captures only the first one is new, the
+    // second finds the hash already taken in the recent map
+    public boolean recordIfNew(String methodName, String contentHash) {
+        if (!enabled || Util.isNull(contentHash)) {
+            return true;
+        }
+        MethodFilter filter = filter(methodName);
+        if (!filter.rememberIfAbsent(contentHash)) {
+            return false;
+        }
+        ContentHash hash = ContentHash.fromHex(contentHash);
+        if (filter.mightContain(hash) && restMessageService.hasPendingRestMessage(contentHash, methodName)) {
+            return false;
+        }
+        filter.put(methodName, hash);
+        return true;
+    }
+
+    // Called once a message is delivered or exhausted, so a later identical failure is captured again
+    public void forget(String methodName, String contentHash) {
+        if (!enabled || Util.isNull(contentHash)) {
+            return;
+        }
+        filter(methodName).forget(contentHash);
+    }
+
+    private MethodFilter filter(String methodName) {
+        return filters.computeIfAbsent(Util.isNull(methodName) ? "" : methodName, name -> new MethodFilter());
+    }
+
+    private final class MethodFilter {
+
+        private final AtomicLongArray bits = new AtomicLongArray((bloomBits + 63) / 64);
+
+        private final AtomicInteger insertions = new AtomicInteger();
+
+        // Insertions that keep the false positive rate low
+        private final int capacity = bloomBits / (bloomHashes * 4);
+
+        private volatile int rebuildAt = capacity;
+
+        private final AtomicBoolean rebuilding = new AtomicBoolean();
+
+        private final Map<String, Long> recent = new LinkedHashMap<String, Long>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > recentSize;
+            }
+        };
+
+        private boolean mightContain(ContentHash hash) {
+            if (!seeded || rebuilding.get()) {
+                return true;
+            }
+            for (int i = 0; i < bloomHashes; i++) {
+                int bit = bit(hash, i);
+                if ((bits.get(bit >>> 6) & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void put(String methodName, ContentHash hash) {
+            add(hash);
+            // Hashes are never removed from a Bloom filter. Once it is saturated, rebuild it from the pending outbox
+            // so the false positive rate, and with it the number of database lookups, stays low.
+            if (insertions.get() > rebuildAt && rebuilding.compareAndSet(false, true)) {
+                try {
+                    rebuild(methodName, hash);
+                } finally {
+                    rebuilding.set(false);
+                }
+            }
+        }
+
+        // hash is the capture being recorded, its message is not saved yet
+        private void rebuild(String methodName, ContentHash hash) {
+            try {
+                List<String> pending = restMessageService.getPendingContentHashes(methodName);
+                for (int i = 0; i < bits.length(); i++) {
+                    bits.set(i, 0L);
+                }
+                insertions.set(0);
+                pending.forEach(contentHash -> add(ContentHash.fromHex(contentHash)));
+                add(hash);
+                // More pending hashes than the filter holds well, wait for another half capacity before trying again
+                rebuildAt = Math.max(capacity, pending.size() + capacity / 2);
+            } catch (Exception e) {
+                // Keep the saturated filter, it answers "might contain" more often but never misses a hash
+                log.warn("could not rebuild the outbox dedup filter of {}: {}", methodName, e.getMessage());
+                rebuildAt = insertions.get() + capacity / 2;
+            }
+        }
+
+        private void add(ContentHash hash) {
+            insertions.incrementAndGet();
+            for (int i = 0; i < bloomHashes; i++) {
+                int bit = bit(hash, i);
+                int index = bit >>> 6;
+                long mask = 1L << bit;
+                long word;
+                do {
+                    word = bits.get(index);
+                } while ((word & mask) == 0 && !bits.compareAndSet(index, word, word | mask));
+            }
+        }
+
+        private int bit(ContentHash hash, int i) {
+            long combined = hash.getH1() + i * hash.getH2();
+            return (int) ((combined & Long.MAX_VALUE) % bloomBits);
+        }
+
+        // False when the hash was captured within the ttl, otherwise takes it
+        private synchronized boolean rememberIfAbsent(String contentHash) {
+            long now = System.currentTimeMillis();
+            Long capturedAt = recent.get(contentHash);
+            if (Util.isNotNull(capturedAt) && now - capturedAt <= recentTtlMillis) {
+                return false;
+            }
+            recent.put(contentHash, now);
+            return true;
+        }
+
+        private synchronized void forget(String contentHash) {
+            recent.remove(contentHash);
+        }
+    }
+}
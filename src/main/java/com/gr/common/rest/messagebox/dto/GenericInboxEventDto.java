@@ -18,6 +18,7 @@ public class GenericInboxEventDto<T> extends ApplicationEvent {
 
     private ServiceName serviceName;
 
+    private String idempotencyKey;
 
 
     public GenericInboxEventDto(Object source, String id, T requestDto) {
@@ -99,4 +100,12 @@ public class GenericInboxEventDto<T> extends ApplicationEvent {
         return this.status;
     }
 
+    public void setIdempotencyKey(String idempotencyKey) {
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    public String getIdempotencyKey() {
+        return this.idempotencyKey;
+    }
+
 }
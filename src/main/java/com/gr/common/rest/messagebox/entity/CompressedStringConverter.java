@@ -0,0 +1,94 @@
+package com.gr.common.rest.messagebox.entity;
+
+import org.springframework.beans.factory.annotation.Value;
+
+import javax.persistence.AttributeConverter;
+import javax.persistence.Converter;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates large payload columns before they are written. Compressed values carry a format marker, anything
+ * without it is returned as stored, so rows written before compression was enabled stay readable.
+ */
+@Converter
+public class CompressedStringConverter implements AttributeConverter<String, String> {
+
+    static final String MARKER = "~z1~";
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(Inflater::new);
+
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    // Hibernate creates converters through the Spring bean container, so these are injected when running in Spring
+    @Value("${rest.messagebox.compression.enabled:true}")
+    private boolean enabled = true;
+
+    @Value("${rest.messagebox.compression.min-length:1024}")
+    private int minLength = 1024;
+
+    @Override
+    public String convertToDatabaseColumn(String attribute) {
+        if (!enabled || attribute == null || attribute.length() < minLength) {
+            return attribute;
+        }
+        byte[] raw = attribute.getBytes(StandardCharsets.UTF_8);
+        byte[] compressed = deflate(raw);
+        // Base64 adds a third, small or random payloads may not be worth it
+        if (MARKER.length() + (compressed.length + 2) / 3 * 4 >= attribute.length()) {
+            return attribute;
+        }
+        return MARKER + Base64.getEncoder().encodeToString(compressed);
+    }
+
+    @Override
+    public String convertToEntityAttribute(String dbData) {
+        if (dbData == null || !dbData.startsWith(MARKER)) {
+            return dbData;
+        }
+        return new String(inflate(Base64.getDecoder().decode(dbData.substring(MARKER.length()))), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] deflate(byte[] raw) {
+        Deflater deflater = DEFLATER.get();
+        byte[] buffer = BUFFER.get();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(raw.length / 4 + 16);
+        try {
+            deflater.setInput(raw);
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.reset();
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] inflate(byte[] compressed) {
+        Inflater inflater = INFLATER.get();
+        byte[] buffer = BUFFER.get();
+        ByteArrayOutputStream out = new ByteArrayOutputStream(compressed.length * 8);
+        try {
+            inflater.setInput(compressed);
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0 && inflater.needsInput()) {
+                    throw new IllegalStateException("Truncated compressed column value");
+                }
+                out.write(buffer, 0, length);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt compressed column value", e);
+        } finally {
+            inflater.reset();
+        }
+        return out.toByteArray();
+    }
+}
@@ -13,11 +13,16 @@ import java.time.LocalDateTime;
 @Getter
 @Entity
 @Builder
+@Table(indexes = {
+        // failed record replay: status equality, keyset on id
+        @Index(name = "idx_inbox_status_id", columnList = "status, id")
+})
 public class Inbox {
     @Id
     private String id;
 
     @Lob
+    @Convert(converter = CompressedStringConverter.class)
     private String content;
 
     @Lob
@@ -33,8 +38,16 @@ public class Inbox {
 
     private String methodName;
 
+    @Column(unique = true)
+    private String idempotencyKey;
+
     @Lob
     private String reason;
 
+    // Replay attempts of a FAILURE record, see InboxReplayEngine
+    private Integer retryCount;
+
+    private LocalDateTime leaseExpiresAt;
+
 
 }
@@ -3,13 +3,17 @@ package com.gr.common.rest.messagebox.entity;
 import java.time.LocalDateTime;
 
 import javax.persistence.Column;
+import javax.persistence.Convert;
 import javax.persistence.Entity;
 import javax.persistence.EnumType;
 import javax.persistence.Enumerated;
 import javax.persistence.GeneratedValue;
 import javax.persistence.GenerationType;
 import javax.persistence.Id;
+import javax.persistence.Index;
 import javax.persistence.Lob;
+import javax.persistence.SequenceGenerator;
+import javax.persistence.Table;
 
 import com.gr.common.rest.messagebox.constants.*;
 import lombok.*;
@@ -20,18 +24,35 @@ import lombok.*;
 @Getter
 @Entity
 @Builder
+@Table(indexes = {
+        // replay scans: type/status equality, keyset on id. retryCount stays out of the key, a range on it ahead of id
+        // would make every keyset chunk sort all pending rows
+        @Index(name = "idx_rest_message_type_status_id", columnList = "type, status, id"),
+        // per method drains and content hash dedup lookups
+        @Index(name = "idx_rest_message_method_hash_status", columnList = "serviceMethodName, contentHash, status"),
+        // retention purge of delivered messages, keyset on id
+        @Index(name = "idx_rest_message_status_id", columnList = "status, id"),
+        // due messages of the concurrent drains and the relay
+        @Index(name = "idx_rest_message_status_next_attempt", columnList = "status, nextAttemptAt"),
+        // ordered delivery per ordering key, see OrderedOutboxDispatcher
+        @Index(name = "idx_rest_message_method_ordering_key", columnList = "serviceMethodName, orderingKey, id")
+})
 public class RestMessage {
 
+    // Pooled sequence ids, unlike IDENTITY they let hibernate batch inserts (see RestMessageService#saveRestMessages)
     @Id
-    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "rest_message_seq")
+    @SequenceGenerator(name = "rest_message_seq", sequenceName = "rest_message_seq", allocationSize = 50)
     @Column(nullable = false)
     private Long id;
 
     @Lob
+    @Convert(converter = CompressedStringConverter.class)
     @Column(nullable = true)
     private String requestHeadersJson;
 
     @Lob
+    @Convert(converter = CompressedStringConverter.class)
     private String content;
 
     @Lob
@@ -46,14 +67,17 @@ public class RestMessage {
     private HTTPMethod httpMethod;
 
     @Lob
+    @Convert(converter = CompressedStringConverter.class)
     @Column(nullable = true)
     private String response;
 
     @Lob
+    @Convert(converter = CompressedStringConverter.class)
     @Column(nullable = true)
     private String responseHeadersJson;
 
     @Lob
+    @Convert(converter = CompressedStringConverter.class)
     @Column(nullable = true)
     private String queryParameters;
 
@@ -93,6 +117,20 @@ public class RestMessage {
 
     private String contentHash;
 
+    // Messages of one method sharing this key are delivered in id order, see RestFaultTolerant#orderingKey
+    private String orderingKey;
+
+    // Replica currently holding the message for replay and until when, see RestMessageService#claimPendingOutboxMessages
+    @Column(nullable = true)
+    private String leaseOwner;
+
+    @Column(nullable = true)
+    private LocalDateTime leaseExpiresAt;
+
+    // Not replayed by the concurrent drains before this time, see RetryBackoff. Null is due.
+    @Column(nullable = true)
+    private LocalDateTime nextAttemptAt;
+
     @Enumerated(EnumType.STRING)
     private Type type;
 
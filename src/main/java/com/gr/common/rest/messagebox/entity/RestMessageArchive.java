@@ -0,0 +1,138 @@
+package com.gr.common.rest.messagebox.entity;
+
+import java.time.LocalDateTime;
+
+import javax.persistence.Column;
+import javax.persistence.Convert;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.Id;
+import javax.persistence.Lob;
+
+import com.gr.common.rest.messagebox.constants.*;
+import lombok.*;
+
+/**
+ * Delivered and retry-exhausted outbox messages moved out of rest_message by the retention job, see
+ * RestMessageService#archiveDeliveredBatch. Ids are the ones the message had in rest_message.
+ */
+@AllArgsConstructor
+@NoArgsConstructor
+@Setter
+@Getter
+@Entity
+@Builder
+public class RestMessageArchive {
+
+    @Id
+    @Column(nullable = false)
+    private Long id;
+
+    @Lob
+    @Convert(converter = CompressedStringConverter.class)
+    @Column(nullable = true)
+    private String requestHeadersJson;
+
+    @Lob
+    @Convert(converter = CompressedStringConverter.class)
+    private String content;
+
+    @Lob
+    private String contentType;
+
+    private LocalDateTime createDateTime;
+
+    @Column(nullable = false)
+    private String endPointUrl;
+
+    @Enumerated(EnumType.STRING)
+    private HTTPMethod httpMethod;
+
+    @Lob
+    @Convert(converter = CompressedStringConverter.class)
+    @Column(nullable = true)
+    private String response;
+
+    @Lob
+    @Convert(converter = CompressedStringConverter.class)
+    @Column(nullable = true)
+    private String responseHeadersJson;
+
+    @Lob
+    @Convert(converter = CompressedStringConverter.class)
+    @Column(nullable = true)
+    private String queryParameters;
+
+    @Column(nullable = true)
+    private LocalDateTime responseDateTime;
+
+    @Enumerated(EnumType.STRING)
+    private RestMessageStatus status;
+
+    @Column(nullable = true)
+    private Integer reponseStatusCode;
+
+    @Lob
+    @Column(nullable = true)
+    private String responseStatusMessage;
+
+    @Column(nullable = true)
+    private Integer retryCount;
+
+    @Column(nullable = true)
+    private Integer schedulerRetryCount;
+
+    @Column(nullable = true)
+    private LocalDateTime lastSendDateTime;
+
+    @Column(nullable = true)
+    private Long responseDurationInMillis;
+
+    @Enumerated(EnumType.STRING)
+    private GrSystem sourceSystem;
+
+    @Enumerated(EnumType.STRING)
+    private ServiceName sourceService;
+
+    private String serviceMethodName;
+
+    private String contentHash;
+
+    private String orderingKey;
+
+    @Enumerated(EnumType.STRING)
+    private Type type;
+
+    private LocalDateTime archivedDateTime;
+
+    public static RestMessageArchive of(RestMessage restMessage, LocalDateTime archivedDateTime) {
+        return RestMessageArchive.builder()
+                .id(restMessage.getId())
+                .requestHeadersJson(restMessage.getRequestHeadersJson())
+                .content(restMessage.getContent())
+                .contentType(restMessage.getContentType())
+                .createDateTime(restMessage.getCreateDateTime())
+                .endPointUrl(restMessage.getEndPointUrl())
+                .httpMethod(restMessage.getHttpMethod())
+                .response(restMessage.getResponse())
+                .responseHeadersJson(restMessage.getResponseHeadersJson())
+                .queryParameters(restMessage.getQueryParameters())
+                .responseDateTime(restMessage.getResponseDateTime())
+                .status(restMessage.getStatus())
+                .reponseStatusCode(restMessage.getReponseStatusCode())
+                .responseStatusMessage(restMessage.getResponseStatusMessage())
+                .retryCount(restMessage.getRetryCount())
+                .schedulerRetryCount(restMessage.getSchedulerRetryCount())
+                .lastSendDateTime(restMessage.getLastSendDateTime())
+                .responseDurationInMillis(restMessage.getResponseDurationInMillis())
+                .sourceSystem(restMessage.getSourceSystem())
+                .sourceService(restMessage.getSourceService())
+                .serviceMethodName(restMessage.getServiceMethodName())
+                .contentHash(restMessage.getContentHash())
+                .orderingKey(restMessage.getOrderingKey())
+                .type(restMessage.getType())
+                .archivedDateTime(archivedDateTime)
+                .build();
+    }
+}
@@ -0,0 +1,25 @@
+package com.gr.common.rest.messagebox.exception;
+
+/**
+ * Thrown by a @GRInboxPattern method for a request whose idempotency key was already handled, or is being handled,
+ * without a result this instance can return: it completed or is running on another instance, or the first attempt
+ * on this instance did not finish in time.
+ */
+public class DuplicateInboxRequestException extends RuntimeException {
+
+    private final String idempotencyKey;
+
+    public DuplicateInboxRequestException(String idempotencyKey, String message) {
+        super(message);
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    public DuplicateInboxRequestException(String idempotencyKey, String message, Throwable cause) {
+        super(message, cause);
+        this.idempotencyKey = idempotencyKey;
+    }
+
+    public String getIdempotencyKey() {
+        return idempotencyKey;
+    }
+}
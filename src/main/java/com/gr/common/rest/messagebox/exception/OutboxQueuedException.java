@@ -0,0 +1,12 @@
+package com.gr.common.rest.messagebox.exception;
+
+/**
+ * Thrown to the caller of a synchronous @RestFaultTolerant method whose call was not made but queued in the outbox,
+ * behind undelivered messages of its ordering key. The call is delivered from the outbox, in order.
+ */
+public class OutboxQueuedException extends RuntimeException {
+
+    public OutboxQueuedException(String message) {
+        super(message);
+    }
+}
@@ -1,5 +1,6 @@
 package com.gr.common.rest.messagebox.listener;
 
+import com.gr.common.rest.messagebox.config.InboxEventExecutor;
 import com.gr.common.rest.messagebox.constants.RequestProcessingStatus;
 import com.gr.common.rest.messagebox.dto.GenericInboxEventDto;
 import com.gr.common.rest.messagebox.entity.Inbox;
@@ -7,13 +8,21 @@ import com.gr.common.rest.messagebox.repository.InboxRepository;
 import com.gr.common.v2.util.Util;
 import com.gr.grid.common.util.JsonUtil;
 import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.ApplicationListener;
-import org.springframework.scheduling.annotation.Async;
 import org.springframework.stereotype.Component;
 
 import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
+@Slf4j
 @Component
 public class GenericSpringEventListener
         implements ApplicationListener<GenericInboxEventDto<Object>> {
@@ -21,25 +30,123 @@ public class GenericSpringEventListener
     @Autowired
     private InboxRepository inboxRepository;
 
-    Inbox inbox = null;
+    @Autowired
+    private InboxStateWriter inboxStateWriter;
+
+    @Autowired
+    private InboxEventExecutor inboxEventExecutor;
+
+    @Value("${rest.messagebox.inbox.completed-early-ttl-millis:60000}")
+    private long completedEarlyTtlMillis;
+
+    private final Object[] locks = new Object[64];
+
+    // Requests whose PROCESSING event has been written and whose outcome has not
+    private final Set<String> processing = ConcurrentHashMap.newKeySet();
+
+    // Outcomes handled before the PROCESSING event of the same request, with the time they were handled
+    private final Map<String, Long> completedEarly = new ConcurrentHashMap<>();
 
-    @Async
+    // Events waiting for the write of an earlier event of the same request, which the writing thread picks up
+    private final Map<String, Queue<GenericInboxEventDto<Object>>> queuedWrites = new ConcurrentHashMap<>();
+
+    private volatile long lastExpiry = System.currentTimeMillis();
+
+    {
+        for (int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    // Persistence runs on the bounded inbox executor, not on an unbounded @Async thread per event
     @Override
     public void onApplicationEvent(@NonNull GenericInboxEventDto<Object> event) {
-        System.out.println("Received event UUID - " + event.getId());
-        System.out.println("Received event request - " + event.getRequestDto());
-        System.out.println("Received event status - " + event.getStatus());
+        inboxEventExecutor.execute(() -> handle(event));
+    }
+
+    private void handle(GenericInboxEventDto<Object> event) {
+        log.debug("Received inbox event {} with status {}", event.getId(), event.getStatus());
+        if (inboxStateWriter.isEnabled()) {
+            coalesce(event);
+            return;
+        }
+        // Events of one request run on different executor threads. The stripe lock only orders them, the writes of one
+        // request are done one after the other by whichever thread got there first, outside the lock
+        String id = event.getId();
+        Object lock = locks[Math.floorMod(id.hashCode(), locks.length)];
+        synchronized (lock) {
+            if (RequestProcessingStatus.PROCESSING.equals(event.getStatus())) {
+                if (Util.isNotNull(completedEarly.remove(id))) {
+                    return;
+                }
+                processing.add(id);
+            } else if (!processing.remove(id)) {
+                // Overtook its PROCESSING event, which must not be written afterwards
+                completedEarly.put(id, System.currentTimeMillis());
+            }
+            Queue<GenericInboxEventDto<Object>> queued = queuedWrites.get(id);
+            if (Util.isNotNull(queued)) {
+                queued.add(event);
+                return;
+            }
+            queuedWrites.put(id, new ArrayDeque<>());
+        }
+        GenericInboxEventDto<Object> next = event;
+        while (Util.isNotNull(next)) {
+            writeSafely(next);
+            synchronized (lock) {
+                next = queuedWrites.get(id).poll();
+                if (Util.isNull(next)) {
+                    queuedWrites.remove(id);
+                }
+            }
+        }
+        expireCompletedEarly();
+    }
+
+    private void writeSafely(GenericInboxEventDto<Object> event) {
+        try {
+            write(event);
+        } catch (Exception e) {
+            log.error("inbox event {} with status {} could not be written: {}", event.getId(), event.getStatus(), e.getMessage(), e);
+        }
+    }
+
+    // A PROCESSING event that never arrives, e.g. rejected by the executor, must not keep its entry forever
+    private void expireCompletedEarly() {
+        long now = System.currentTimeMillis();
+        if (now - lastExpiry < completedEarlyTtlMillis) {
+            return;
+        }
+        lastExpiry = now;
+        completedEarly.values().removeIf(completedAt -> now - completedAt > completedEarlyTtlMillis);
+    }
+
+    private void write(GenericInboxEventDto<Object> event) {
+        // Keyed requests keep their SUCCESS row so redeliveries are recognised
+        if (RequestProcessingStatus.SUCCESS.equals(event.getStatus()) && Util.isNotNull(event.getIdempotencyKey())) {
+            inboxRepository.save(createRestMessage(event, event.getStatus(), null));
         // Check if the status is success then delete the record from inbox table
-        if (RequestProcessingStatus.SUCCESS.equals(event.getStatus())){
-            System.out.println("Deleting from inbox on success...");
-            inboxRepository.deleteById(event.getId());
+        } else if (RequestProcessingStatus.SUCCESS.equals(event.getStatus())){
+            log.debug("Deleting {} from inbox on success", event.getId());
+            inboxRepository.deleteByIds(Collections.singletonList(event.getId()));
         }else{
-            System.out.println("saving in inbox...");
-            inbox = inboxRepository.save(createRestMessage(event, event.getStatus(), event.getFailureReason()));
+            log.debug("saving {} in inbox", event.getId());
+            inboxRepository.save(createRestMessage(event, event.getStatus(), event.getFailureReason()));
+        }
+    }
+
+    private void coalesce(GenericInboxEventDto<Object> event) {
+        if (RequestProcessingStatus.PROCESSING.equals(event.getStatus())) {
+            inboxStateWriter.processing(event);
+        } else if (RequestProcessingStatus.SUCCESS.equals(event.getStatus())) {
+            inboxStateWriter.success(event);
+        } else {
+            inboxStateWriter.failure(event);
         }
     }
 
-    private Inbox createRestMessage(GenericInboxEventDto<Object> eventDto, RequestProcessingStatus status, String failureReason) {
+    static Inbox createRestMessage(GenericInboxEventDto<Object> eventDto, RequestProcessingStatus status, String failureReason) {
         return Inbox.builder()
                 .id(eventDto.getId())
                 .content(JsonUtil.convertToJson(eventDto.getRequestDto()))
@@ -47,6 +154,7 @@ public class GenericSpringEventListener
                 .createDateTime(LocalDateTime.now())
                 .serviceName(eventDto.getServiceName())
                 .methodName(eventDto.getMethodName())
+                .idempotencyKey(eventDto.getIdempotencyKey())
                 .status(status)
                 .reason(Util.isNotNullAndEmpty(failureReason) ? failureReason : null)
                 .build();
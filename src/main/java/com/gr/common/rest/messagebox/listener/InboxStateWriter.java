@@ -0,0 +1,283 @@
+package com.gr.common.rest.messagebox.listener;
+
+import com.gr.common.rest.messagebox.constants.RequestProcessingStatus;
+import com.gr.common.rest.messagebox.dto.GenericInboxEventDto;
+import com.gr.common.rest.messagebox.entity.Inbox;
+import com.gr.common.rest.messagebox.repository.InboxRepository;
+import com.gr.common.v2.util.Util;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Coalesces inbox state changes in memory. A PROCESSING record is only written if the request is still running
+ * after the grace window, so the usual PROCESSING then SUCCESS pair never reaches the database. Long-running and
+ * failed requests are written in batches.
+ */
+@Slf4j
+@Component
+public class InboxStateWriter {
+
+    @Autowired
+    private InboxRepository inboxRepository;
+
+    @Value("${rest.messagebox.inbox.coalescing.enabled:false}")
+    private boolean enabled;
+
+    @Value("${rest.messagebox.inbox.coalescing.grace-window-millis:2000}")
+    private long graceWindowMillis;
+
+    @Value("${rest.messagebox.inbox.coalescing.flush-interval-millis:500}")
+    private long flushIntervalMillis;
+
+    @Value("${rest.messagebox.inbox.coalescing.batch-size:100}")
+    private int batchSize;
+
+    private final Map<String, PendingInbox> pending = new ConcurrentHashMap<>();
+
+    // SUCCESS events that overtook their PROCESSING event, the listener runs asynchronously
+    private final Map<String, Long> completedEarly = new ConcurrentHashMap<>();
+
+    // FAILURE rows, and SUCCESS rows of requests with an idempotency key which are kept instead of deleted
+    private final Queue<Inbox> writes = new ConcurrentLinkedQueue<>();
+
+    private final Queue<String> deletes = new ConcurrentLinkedQueue<>();
+
+    private ScheduledExecutorService flusher;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "inbox-state-writer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::flushSafely, flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+        log.info("inbox coalescing enabled, grace window {}ms", graceWindowMillis);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (Util.isNull(flusher)) {
+            return;
+        }
+        flusher.shutdown();
+        // Whatever is still running is written as PROCESSING so a restart can see it
+        pending.values().forEach(pendingInbox -> pendingInbox.enqueuedAt = 0);
+        flushSafely();
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void processing(GenericInboxEventDto<Object> event) {
+        if (Util.isNotNull(completedEarly.remove(event.getId()))) {
+            return;
+        }
+        pending.put(event.getId(), new PendingInbox(event));
+    }
+
+    public void success(GenericInboxEventDto<Object> event) {
+        String id = event.getId();
+        PendingInbox pendingInbox = pending.get(id);
+        if (Util.isNull(pendingInbox)) {
+            completedEarly.put(id, System.currentTimeMillis());
+            keepIfKeyed(event);
+            return;
+        }
+        synchronized (pendingInbox) {
+            switch (pendingInbox.state) {
+                case PENDING:
+                    // Completed within the grace window, nothing was ever written
+                    pending.remove(id);
+                    keepIfKeyed(event);
+                    break;
+                case FLUSHING:
+                    pendingInbox.completed = event;
+                    break;
+                default:
+                    pending.remove(id);
+                    completed(event);
+            }
+        }
+    }
+
+    private void completed(GenericInboxEventDto<Object> event) {
+        if (!keepIfKeyed(event)) {
+            deletes.add(event.getId());
+        }
+    }
+
+    private boolean keepIfKeyed(GenericInboxEventDto<Object> event) {
+        if (Util.isNull(event.getIdempotencyKey())) {
+            return false;
+        }
+        writes.add(inbox(event, RequestProcessingStatus.SUCCESS, null));
+        return true;
+    }
+
+    public void failure(GenericInboxEventDto<Object> event) {
+        PendingInbox pendingInbox = pending.get(event.getId());
+        if (Util.isNotNull(pendingInbox)) {
+            synchronized (pendingInbox) {
+                if (State.FLUSHING.equals(pendingInbox.state)) {
+                    // Written after the PROCESSING row so it is not overwritten by it
+                    pendingInbox.failure = event;
+                    return;
+                }
+                pending.remove(event.getId());
+            }
+        }
+        writes.add(inbox(event, RequestProcessingStatus.FAILURE, event.getFailureReason()));
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error("inbox flush failed: {}", e.getMessage(), e);
+        }
+    }
+
+    private void flush() {
+        long now = System.currentTimeMillis();
+        List<PendingInbox> overdue = new ArrayList<>();
+        for (PendingInbox pendingInbox : pending.values()) {
+            synchronized (pendingInbox) {
+                if (State.PENDING.equals(pendingInbox.state) && now - pendingInbox.enqueuedAt >= graceWindowMillis) {
+                    pendingInbox.state = State.FLUSHING;
+                    overdue.add(pendingInbox);
+                }
+            }
+        }
+        for (int from = 0; from < overdue.size(); from += batchSize) {
+            List<PendingInbox> batch = overdue.subList(from, Math.min(overdue.size(), from + batchSize));
+            List<Inbox> rows = new ArrayList<>(batch.size());
+            batch.forEach(pendingInbox -> rows.add(inbox(pendingInbox.event, RequestProcessingStatus.PROCESSING, null)));
+            try {
+                inboxRepository.saveAll(rows);
+                batch.forEach(this::flushed);
+            } catch (Exception e) {
+                log.error("inbox batch of {} could not be saved, retrying on next flush: {}", batch.size(), e.getMessage());
+                batch.forEach(this::notFlushed);
+            }
+        }
+
+        drain(writes, inboxRepository::saveAll, Inbox::getId);
+        drain(deletes, inboxRepository::deleteByIds, Function.identity());
+        completedEarly.values().removeIf(completedAt -> now - completedAt > 2 * graceWindowMillis);
+    }
+
+    private void flushed(PendingInbox pendingInbox) {
+        String id = pendingInbox.event.getId();
+        synchronized (pendingInbox) {
+            pendingInbox.state = State.FLUSHED;
+            if (Util.isNotNull(pendingInbox.completed)) {
+                pending.remove(id);
+                completed(pendingInbox.completed);
+            } else if (Util.isNotNull(pendingInbox.failure)) {
+                pending.remove(id);
+                writes.add(inbox(pendingInbox.failure, RequestProcessingStatus.FAILURE, pendingInbox.failure.getFailureReason()));
+            }
+        }
+    }
+
+    private void notFlushed(PendingInbox pendingInbox) {
+        String id = pendingInbox.event.getId();
+        synchronized (pendingInbox) {
+            pendingInbox.state = State.PENDING;
+            if (Util.isNotNull(pendingInbox.completed)) {
+                pending.remove(id);
+                keepIfKeyed(pendingInbox.completed);
+            } else if (Util.isNotNull(pendingInbox.failure)) {
+                pending.remove(id);
+                writes.add(inbox(pendingInbox.failure, RequestProcessingStatus.FAILURE, pendingInbox.failure.getFailureReason()));
+            }
+        }
+    }
+
+    private Inbox inbox(GenericInboxEventDto<Object> event, RequestProcessingStatus status, String failureReason) {
+        return GenericSpringEventListener.createRestMessage(event, status, failureReason);
+    }
+
+    private <T> void drain(Queue<T> queue, Consumer<List<T>> writer, Function<T, String> idOf) {
+        List<T> batch = new ArrayList<>(batchSize);
+        T item;
+        while ((item = queue.poll()) != null) {
+            batch.add(item);
+            if (batch.size() == batchSize) {
+                if (!write(batch, queue, writer, idOf)) {
+                    return;
+                }
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            write(batch, queue, writer, idOf);
+        }
+    }
+
+    // Returns false when nothing of the batch could be written, the rows are queued again for the next flush
+    private <T> boolean write(List<T> batch, Queue<T> queue, Consumer<List<T>> writer, Function<T, String> idOf) {
+        try {
+            writer.accept(batch);
+            return true;
+        } catch (Exception e) {
+            // One bad row must not lose the whole batch, retry the rows one by one
+            log.error("inbox batch of {} could not be written, writing one by one: {}", batch.size(), e.getMessage());
+        }
+        List<T> failed = new ArrayList<>();
+        Exception lastError = null;
+        for (T row : batch) {
+            try {
+                writer.accept(Collections.singletonList(row));
+            } catch (Exception e) {
+                failed.add(row);
+                lastError = e;
+            }
+        }
+        if (failed.size() < batch.size()) {
+            failed.forEach(row -> log.error("inbox row {} could not be written, dropping it", idOf.apply(row)));
+            return true;
+        }
+        log.error("inbox batch of {} could not be written, retrying on next flush: {}", batch.size(), lastError.getMessage());
+        queue.addAll(failed);
+        return false;
+    }
+
+    private enum State {
+        PENDING, FLUSHING, FLUSHED
+    }
+
+    private static final class PendingInbox {
+        private final GenericInboxEventDto<Object> event;
+        private volatile long enqueuedAt = System.currentTimeMillis();
+        private State state = State.PENDING;
+        private GenericInboxEventDto<Object> completed;
+        private GenericInboxEventDto<Object> failure;
+
+        private PendingInbox(GenericInboxEventDto<Object> event) {
+            this.event = event;
+        }
+    }
+}
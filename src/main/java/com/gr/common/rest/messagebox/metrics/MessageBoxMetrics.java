@@ -0,0 +1,134 @@
+package com.gr.common.rest.messagebox.metrics;
+
+import com.gr.common.rest.messagebox.constants.RequestProcessingStatus;
+import com.gr.common.rest.messagebox.constants.RestMessageStatus;
+import com.gr.common.rest.messagebox.constants.RetentionAction;
+import com.gr.common.rest.messagebox.constants.ServiceName;
+import com.gr.common.rest.messagebox.entity.RestMessage;
+import com.gr.common.rest.messagebox.repository.InboxRepository;
+import com.gr.common.rest.messagebox.service.OutboxBacklogIndex;
+import com.gr.common.v2.util.Util;
+import io.github.resilience4j.circuitbreaker.event.CircuitBreakerOnStateTransitionEvent;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Micrometer meters of the outbox, inbox and circuit breakers. Outbox backlog gauges read OutboxBacklogIndex, so
+ * scraping never scans the tables. Tags are limited to enums and target names, which are bounded by the annotated
+ * methods.
+ */
+@Slf4j
+@Component
+public class MessageBoxMetrics {
+
+    private static final String PREFIX = "rest.messagebox.";
+
+    @Autowired
+    private ObjectProvider<MeterRegistry> meterRegistryProvider;
+
+    @Autowired
+    private OutboxBacklogIndex outboxBacklogIndex;
+
+    @Autowired
+    private InboxRepository inboxRepository;
+
+    private MeterRegistry meterRegistry;
+
+    private final AtomicLong inboxInFlight = new AtomicLong();
+
+    private final AtomicLong inboxFailed = new AtomicLong();
+
+    @PostConstruct
+    public void init() {
+        meterRegistry = meterRegistryProvider.getIfAvailable(() -> Metrics.globalRegistry);
+        for (ServiceName serviceName : ServiceName.values()) {
+            for (RestMessageStatus status : new RestMessageStatus[]{RestMessageStatus.NEW, RestMessageStatus.FAILURE}) {
+                meterRegistry.gauge(PREFIX + "outbox.backlog", Tags.of("service", serviceName.name(), "status", status.name()),
+                        outboxBacklogIndex, index -> index.pending(serviceName, status));
+            }
+        }
+        meterRegistry.gauge(PREFIX + "inbox.in.flight", inboxInFlight);
+        meterRegistry.gauge(PREFIX + "inbox.failed", inboxFailed);
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public void seed() {
+        try {
+            inboxFailed.set(inboxRepository.countByStatus(RequestProcessingStatus.FAILURE));
+        } catch (Exception e) {
+            log.warn("could not seed the inbox failed gauge: {}", e.getMessage());
+        }
+    }
+
+    public Timer.Sample startTimer() {
+        return Timer.start(meterRegistry);
+    }
+
+    public void outboxCaptured(RestMessage restMessage, Timer.Sample sample) {
+        sample.stop(meterRegistry.timer(PREFIX + "outbox.capture", "service", serviceTag(restMessage.getSourceService())));
+    }
+
+    public void outboxDuplicate(ServiceName serviceName) {
+        meterRegistry.counter(PREFIX + "outbox.dedup.hits", "service", serviceTag(serviceName)).increment();
+    }
+
+    public void outboxReplayed(RestMessage restMessage, Timer.Sample sample) {
+        boolean succeeded = RestMessageStatus.SUCCESS.equals(restMessage.getStatus());
+        sample.stop(meterRegistry.timer(PREFIX + "outbox.replay", "service", serviceTag(restMessage.getSourceService()),
+                "outcome", succeeded ? "success" : "failure"));
+    }
+
+    // kind is delivered or exhausted
+    public void retention(String kind, RetentionAction action, long count) {
+        meterRegistry.counter(PREFIX + "retention.rows", "kind", kind, "action", action.name().toLowerCase()).increment(count);
+    }
+
+    public void downstream(String target, boolean succeeded, Timer.Sample sample) {
+        sample.stop(meterRegistry.timer(PREFIX + "downstream", "target", target, "outcome", succeeded ? "success" : "failure"));
+    }
+
+    public void retry(String target) {
+        meterRegistry.counter(PREFIX + "retry.attempts", "target", target).increment();
+    }
+
+    public void circuitBreakerTransition(CircuitBreakerOnStateTransitionEvent event) {
+        meterRegistry.counter(PREFIX + "circuitbreaker.transitions", "name", event.getCircuitBreakerName(),
+                "from", event.getStateTransition().getFromState().name(),
+                "to", event.getStateTransition().getToState().name()).increment();
+    }
+
+    public void inboxStarted() {
+        inboxInFlight.incrementAndGet();
+    }
+
+    public void inboxFinished() {
+        inboxInFlight.decrementAndGet();
+    }
+
+    // alreadyFailed: a retry of a record that is already counted as failed
+    public void inboxFailed(ServiceName serviceName, boolean alreadyFailed) {
+        meterRegistry.counter(PREFIX + "inbox.failures", "service", serviceTag(serviceName)).increment();
+        if (!alreadyFailed) {
+            inboxFailed.incrementAndGet();
+        }
+    }
+
+    public void inboxRecovered() {
+        inboxFailed.updateAndGet(failed -> Math.max(0, failed - 1));
+    }
+
+    private static String serviceTag(ServiceName serviceName) {
+        return Util.isNull(serviceName) ? ServiceName.EXTERNAL.name() : serviceName.name();
+    }
+}
@@ -3,24 +3,36 @@ package com.gr.common.rest.messagebox.publisher;
 import com.gr.common.rest.messagebox.constants.RequestProcessingStatus;
 import com.gr.common.rest.messagebox.constants.ServiceName;
 import com.gr.common.rest.messagebox.dto.GenericInboxEventDto;
+import lombok.extern.slf4j.Slf4j;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Component;
 
+@Slf4j
 @Component
 public class EventPublisher {
     @Autowired
     private ApplicationEventPublisher applicationEventPublisher;
 
     public void publishEventForInbox(final String id, final Object requestDto, ServiceName serviceName, String methodName, RequestProcessingStatus status) {
-        System.out.println("publishEventForInbox Called:");
+        publishEventForInbox(id, null, requestDto, serviceName, methodName, status);
+    }
+
+    public void publishEventForInbox(final String id, final String idempotencyKey, final Object requestDto, ServiceName serviceName, String methodName, RequestProcessingStatus status) {
+        log.debug("publishEventForInbox called for {} with status {}", id, status);
         GenericInboxEventDto event = new GenericInboxEventDto(this, id, requestDto, serviceName, methodName, status);
+        event.setIdempotencyKey(idempotencyKey);
         applicationEventPublisher.publishEvent(event);
     }
 
     public void publishEventForInboxOnFailure(final String id, final Object requestDto, ServiceName serviceName, String methodName, RequestProcessingStatus status, String failureReason) {
-        System.out.println("publishEventForInboxOnFailure Called:");
+        publishEventForInboxOnFailure(id, null, requestDto, serviceName, methodName, status, failureReason);
+    }
+
+    public void publishEventForInboxOnFailure(final String id, final String idempotencyKey, final Object requestDto, ServiceName serviceName, String methodName, RequestProcessingStatus status, String failureReason) {
+        log.debug("publishEventForInboxOnFailure called for {}", id);
         GenericInboxEventDto event = new GenericInboxEventDto(this, id, requestDto, serviceName, methodName, status, failureReason);
+        event.setIdempotencyKey(idempotencyKey);
         applicationEventPublisher.publishEvent(event);
     }
 }
\ No newline at end of file
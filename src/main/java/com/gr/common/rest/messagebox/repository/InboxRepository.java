@@ -1,11 +1,41 @@
 package com.gr.common.rest.messagebox.repository;
 
+import com.gr.common.rest.messagebox.constants.RequestProcessingStatus;
 import com.gr.common.rest.messagebox.entity.Inbox;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
+
+import javax.persistence.LockModeType;
+import javax.persistence.QueryHint;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
 
 @Repository
 public interface InboxRepository extends JpaRepository<Inbox, String> {
 
+    Optional<Inbox> findByIdempotencyKey(String idempotencyKey);
+
+    long countByStatus(RequestProcessingStatus status);
+
+    // FAILURE records, and replays whose lease expired because the replaying instance died. Rows locked by another
+    // instance are skipped (lock timeout -2 is SKIP LOCKED in hibernate)
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = "javax.persistence.lock.timeout", value = "-2"))
+    @Query("select i from Inbox i where (i.status = com.gr.common.rest.messagebox.constants.RequestProcessingStatus.FAILURE"
+            + " or (i.status = com.gr.common.rest.messagebox.constants.RequestProcessingStatus.PROCESSING and i.leaseExpiresAt < :now))"
+            + " and coalesce(i.retryCount, 0) < :maxRetryCount and i.id > :lastId order by i.id")
+    List<Inbox> findClaimableFailedInboxMessagesAfter(String lastId, Integer maxRetryCount, LocalDateTime now, Pageable pageable);
+
+    @Transactional
+    @Modifying
+    @Query("delete from Inbox i where i.id in :ids")
+    int deleteByIds(List<String> ids);
 
 }
@@ -2,14 +2,21 @@ package com.gr.common.rest.messagebox.repository;
 
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.stereotype.Repository;
 
+import com.gr.common.rest.messagebox.constants.RestMessageStatus;
+import com.gr.common.rest.messagebox.constants.ServiceName;
 import com.gr.common.rest.messagebox.entity.RestMessage;
 
+import javax.persistence.LockModeType;
+import javax.persistence.QueryHint;
+import java.time.LocalDateTime;
 import java.util.List;
-import java.util.Optional;
 
 @Repository
 public interface RestMessageRepository extends CrudRepository<RestMessage, Long>{
@@ -28,12 +35,98 @@ public interface RestMessageRepository extends CrudRepository<RestMessage, Long>
     Page<RestMessage> findInboxMessagesThatFailedSending(Pageable pageRequest);
 
 
-    @Query("select m from RestMessage as m where m.type='OUTBOX' and (m.status= 'NEW' OR m.status ='FAILURE') AND m.retryCount <= :retryCount")
+    @Query("select m from RestMessage as m where m.type='OUTBOX' and m.status in ('NEW', 'FAILURE') AND m.retryCount <= :retryCount")
     List<RestMessage> findInboxMessagesThatShouldBeProcessAgain(Integer retryCount);
 
-    @Query("select m from RestMessage as m where m.type='OUTBOX' and (m.status= 'NEW' OR m.status ='FAILURE') AND m.serviceMethodName LIKE :methodName AND m.retryCount <= :retryCount")
+    @Query("select m from RestMessage as m where m.type='OUTBOX' and m.status in ('NEW', 'FAILURE') AND m.serviceMethodName = :methodName AND m.retryCount <= :retryCount")
     List<RestMessage> findInboxMessagesThatShouldBeProcessAgain(String methodName, Integer retryCount);
 
-    @Query("select m from RestMessage as m where m.type='OUTBOX' and (m.status= 'NEW' OR m.status ='FAILURE') AND m.serviceMethodName LIKE :methodName AND m.contentHash LIKE :contentHash AND m.retryCount <= :retryCount")
-    Optional<RestMessage> getExistingMessageBasedOnContentHash(String contentHash, String methodName, Integer retryCount);
+    // Keyset pagination: callers pass the last id of the previous chunk and a Pageable carrying only the chunk size.
+    // Keyset reads take one pending status at a time and order by the whole idx_rest_message_type_status_id prefix, so
+    // the chunk is read off the index in id order. With an IN over both statuses every pending row would be sorted.
+    @Query("select m from RestMessage as m where m.type='OUTBOX' and m.status = :status AND m.retryCount <= :retryCount AND m.id > :lastId order by m.type, m.status, m.id")
+    List<RestMessage> findPendingOutboxMessagesAfter(RestMessageStatus status, Long lastId, Integer retryCount, Pageable pageable);
+
+    @Query("select m from RestMessage as m where m.type='OUTBOX' and m.status = :status AND m.serviceMethodName = :methodName AND m.retryCount <= :retryCount AND m.id > :lastId order by m.type, m.status, m.id")
+    List<RestMessage> findPendingOutboxMessagesAfter(RestMessageStatus status, String methodName, Long lastId, Integer retryCount, Pageable pageable);
+
+    // Locks the returned rows, skipping rows already locked by another replica (lock timeout -2 is SKIP LOCKED in hibernate).
+    // The concurrent drain only takes messages whose backoff has passed, per method drains keep every message to
+    // preserve ordering. Messages with an ordering key are left to OrderedOutboxDispatcher.
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = "javax.persistence.lock.timeout", value = "-2"))
+    @Query("select m from RestMessage as m where m.type='OUTBOX' and m.status = :status AND m.orderingKey is null AND m.retryCount <= :retryCount AND m.id > :lastId AND (m.nextAttemptAt is null OR m.nextAttemptAt <= :now) AND (m.leaseExpiresAt is null OR m.leaseExpiresAt < :now) order by m.type, m.status, m.id")
+    List<RestMessage> findClaimableOutboxMessagesAfter(RestMessageStatus status, Long lastId, Integer retryCount, LocalDateTime now, Pageable pageable);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = "javax.persistence.lock.timeout", value = "-2"))
+    @Query("select m from RestMessage as m where m.type='OUTBOX' and m.status = :status AND m.serviceMethodName = :methodName AND m.orderingKey is null AND m.retryCount <= :retryCount AND m.id > :lastId AND (m.leaseExpiresAt is null OR m.leaseExpiresAt < :now) order by m.type, m.status, m.id")
+    List<RestMessage> findClaimableOutboxMessagesAfter(RestMessageStatus status, String methodName, Long lastId, Integer retryCount, LocalDateTime now, Pageable pageable);
+
+    // When the earliest message skipped by the concurrent drain becomes due
+    @Query("select min(m.nextAttemptAt) from RestMessage as m where m.type='OUTBOX' and m.status = :status AND m.orderingKey is null AND m.retryCount <= :retryCount AND m.nextAttemptAt > :now")
+    LocalDateTime findNextOutboxAttemptAt(RestMessageStatus status, Integer retryCount, LocalDateTime now);
+
+    // Background relay of one source service, relay attempts are counted in schedulerRetryCount
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = "javax.persistence.lock.timeout", value = "-2"))
+    @Query("select m from RestMessage as m where m.type='OUTBOX' and m.status = :status AND m.sourceService = :sourceService AND m.orderingKey is null AND m.retryCount <= :retryCount AND coalesce(m.schedulerRetryCount, 0) < :schedulerRetryCount AND m.id > :lastId AND (m.nextAttemptAt is null OR m.nextAttemptAt <= :now) AND (m.leaseExpiresAt is null OR m.leaseExpiresAt < :now) order by m.type, m.status, m.id")
+    List<RestMessage> findClaimableOutboxMessagesForRelayAfter(RestMessageStatus status, ServiceName sourceService, Long lastId, Integer retryCount, Integer schedulerRetryCount, LocalDateTime now, Pageable pageable);
+
+    // Pending messages of one ordering key in delivery order. Rows are not skipped when locked, a gap would break the
+    // ordering; RestMessageService#claimOrderedOutboxMessages stops at the first message leased by another replica.
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select m from RestMessage as m where m.type='OUTBOX' and m.status in ('NEW', 'FAILURE') AND m.serviceMethodName = :methodName AND m.orderingKey = :orderingKey AND m.retryCount <= :retryCount AND m.id > :lastId order by m.id")
+    List<RestMessage> findOrderedOutboxMessagesAfter(String methodName, String orderingKey, Long lastId, Integer retryCount, Pageable pageable);
+
+    @Query("select distinct m.serviceMethodName, m.orderingKey from RestMessage as m where m.type='OUTBOX' and m.status in ('NEW', 'FAILURE') AND m.orderingKey is not null AND m.retryCount <= :retryCount")
+    List<Object[]> findPendingOrderingKeys(Integer retryCount);
+
+    // Per method counts of OutboxBacklogIndex, messages with an ordering key are tracked by key instead
+    @Query("select m.serviceMethodName, count(m) from RestMessage as m where m.type='OUTBOX' and m.status in ('NEW', 'FAILURE') AND m.orderingKey is null AND m.retryCount <= :retryCount group by m.serviceMethodName")
+    List<Object[]> countPendingOutboxMessagesByMethod(Integer retryCount);
+
+    // Per service and status counts of OutboxBacklogIndex, which the backlog gauges read
+    @Query("select m.sourceService, m.status, count(m) from RestMessage as m where m.type='OUTBOX' and m.status in ('NEW', 'FAILURE') AND m.retryCount <= :retryCount group by m.sourceService, m.status")
+    List<Object[]> countPendingOutboxMessagesByServiceAndStatus(Integer retryCount);
+
+    // Several pending rows can share a hash (concurrent captures, other replicas, transactional captures), callers
+    // page to the first one
+    @Query("select m from RestMessage as m where m.type='OUTBOX' and m.status in ('NEW', 'FAILURE') AND m.serviceMethodName = :methodName AND m.contentHash = :contentHash AND m.retryCount <= :retryCount order by m.id")
+    List<RestMessage> getExistingMessageBasedOnContentHash(String contentHash, String methodName, Integer retryCount, Pageable pageable);
+
+    @Query("select m.id from RestMessage as m where m.type='OUTBOX' and m.status in ('NEW', 'FAILURE') AND m.serviceMethodName = :methodName AND m.contentHash = :contentHash AND m.retryCount <= :retryCount")
+    List<Long> findPendingIdsByContentHash(String contentHash, String methodName, Integer retryCount, Pageable pageable);
+
+    // Messages still leased by the given replica, locked until the outcome written over them is committed
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("select m from RestMessage as m where m.id in :ids AND m.leaseOwner = :leaseOwner")
+    List<RestMessage> findLeasedBy(List<Long> ids, String leaseOwner);
+
+    // Content hashes of the pending outbox, loaded into OutboxDedupFilter
+    @Query("select distinct m.serviceMethodName, m.contentHash from RestMessage as m where m.type='OUTBOX' and m.status in ('NEW', 'FAILURE') AND m.contentHash is not null AND m.retryCount <= :retryCount")
+    List<Object[]> findPendingContentHashes(Integer retryCount);
+
+    @Query("select distinct m.contentHash from RestMessage as m where m.type='OUTBOX' and m.status in ('NEW', 'FAILURE') AND m.serviceMethodName = :methodName AND m.contentHash is not null AND m.retryCount <= :retryCount")
+    List<String> findPendingContentHashes(String methodName, Integer retryCount);
+
+    // Retention: delivered messages last sent before the cutoff, keyset on id
+    @Query("select m.id from RestMessage as m where m.status = 'SUCCESS' AND coalesce(m.lastSendDateTime, m.createDateTime) < :cutoff AND m.id > :lastId order by m.id")
+    List<Long> findDeliveredIdsAfter(Long lastId, LocalDateTime cutoff, Pageable pageable);
+
+    // Rows being archived by another replica are skipped
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = "javax.persistence.lock.timeout", value = "-2"))
+    @Query("select m from RestMessage as m where m.status = 'SUCCESS' AND coalesce(m.lastSendDateTime, m.createDateTime) < :cutoff AND m.id > :lastId order by m.id")
+    List<RestMessage> findDeliveredAfter(Long lastId, LocalDateTime cutoff, Pageable pageable);
+
+    // Messages retried more often than the replay limit, they are never picked up again
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = "javax.persistence.lock.timeout", value = "-2"))
+    @Query("select m from RestMessage as m where m.type='OUTBOX' and m.status in ('NEW', 'FAILURE') AND m.retryCount > :retryCount AND m.id > :lastId order by m.id")
+    List<RestMessage> findExhaustedOutboxMessagesAfter(Long lastId, Integer retryCount, Pageable pageable);
+
+    @Modifying
+    @Query("delete from RestMessage as m where m.id in :ids")
+    int deleteByIds(List<Long> ids);
 }
@@ -0,0 +1,105 @@
+package com.gr.common.rest.messagebox.serializer;
+
+import com.gr.common.rest.messagebox.dedup.ContentHash;
+import com.gr.common.v2.util.Util;
+import com.gr.grid.common.util.JsonUtil;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Serializes captured outbox payloads. The JSON is JsonUtil's, byte for byte, so stored content keeps the
+ * grid-common-lib configuration. The content hash is taken from that JSON encoded into a per-thread reusable byte
+ * buffer, so a capture serializes its payload once and hashing it allocates no intermediate byte arrays.
+ */
+@Component
+public class CaptureSerializer {
+
+    // Buffers grown past this are dropped after use so one large payload does not stay pinned to a thread
+    @Value("${rest.messagebox.capture.serializer.max-retained-buffer-bytes:262144}")
+    private int maxRetainedBufferBytes;
+
+    private final ThreadLocal<HashBuffer> buffers = ThreadLocal.withInitial(() -> new HashBuffer(1024));
+
+    public static CaptureSerializer of(int maxRetainedBufferBytes) {
+        CaptureSerializer captureSerializer = new CaptureSerializer();
+        captureSerializer.maxRetainedBufferBytes = maxRetainedBufferBytes;
+        return captureSerializer;
+    }
+
+    // JSON from JsonUtil.toJson and its content hash
+    public Captured capture(Object value) {
+        return captured(JsonUtil.toJson(value));
+    }
+
+    // JSON from JsonUtil.convertToJson and its content hash
+    public Captured captureConverted(Object value) {
+        return captured(JsonUtil.convertToJson(value));
+    }
+
+    private Captured captured(String json) {
+        if (Util.isNull(json)) {
+            return new Captured(null, null);
+        }
+        HashBuffer buffer = buffers.get();
+        try {
+            return new Captured(json, buffer.hash(json));
+        } finally {
+            if (buffer.capacity() > maxRetainedBufferBytes) {
+                buffers.remove();
+            }
+        }
+    }
+
+    public static final class Captured {
+        private final String json;
+        private final String contentHash;
+
+        private Captured(String json, String contentHash) {
+            this.json = json;
+            this.contentHash = contentHash;
+        }
+
+        public String getJson() {
+            return json;
+        }
+
+        public String getContentHash() {
+            return contentHash;
+        }
+    }
+
+    // Encodes like String.getBytes(UTF_8), malformed input included, so the hash equals ContentHash.of(String)
+    private static final class HashBuffer {
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        private ByteBuffer bytes;
+
+        private HashBuffer(int size) {
+            bytes = ByteBuffer.allocate(size);
+        }
+
+        private String hash(String json) {
+            int maxBytes = (int) Math.ceil(json.length() * (double) encoder.maxBytesPerChar());
+            if (bytes.capacity() < maxBytes) {
+                bytes = ByteBuffer.allocate(maxBytes);
+            }
+            bytes.clear();
+            encoder.reset();
+            encoder.encode(CharBuffer.wrap(json), bytes, true);
+            encoder.flush(bytes);
+            return ContentHash.of(bytes.array(), 0, bytes.position()).toHex();
+        }
+
+        private int capacity() {
+            return bytes.capacity();
+        }
+    }
+}
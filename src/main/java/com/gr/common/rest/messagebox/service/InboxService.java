@@ -0,0 +1,70 @@
+package com.gr.common.rest.messagebox.service;
+
+import com.gr.common.rest.messagebox.constants.RequestProcessingStatus;
+import com.gr.common.rest.messagebox.entity.Inbox;
+import com.gr.common.rest.messagebox.metrics.MessageBoxMetrics;
+import com.gr.common.rest.messagebox.repository.InboxRepository;
+import com.gr.common.v2.util.Util;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+@Service
+public class InboxService {
+
+    @Autowired
+    private InboxRepository inboxRepository;
+
+    @Autowired
+    private MessageBoxMetrics messageBoxMetrics;
+
+    @Value("${rest.messagebox.inbox.replay.max-retry-count:3}")
+    private int maxRetryCount;
+
+    @Value("${rest.messagebox.lease.duration-seconds:300}")
+    private long leaseDurationSeconds;
+
+    // Claims a chunk of failed records by moving them to PROCESSING under a lease, so other instances skip them
+    @Transactional
+    public List<Inbox> claimFailedInboxMessages(String afterId, int chunkSize) {
+        LocalDateTime now = LocalDateTime.now();
+        List<Inbox> inboxes = inboxRepository.findClaimableFailedInboxMessagesAfter(afterId, maxRetryCount, now, PageRequest.of(0, chunkSize));
+        LocalDateTime leaseExpiresAt = now.plusSeconds(leaseDurationSeconds);
+        inboxes.forEach(inbox -> {
+            inbox.setStatus(RequestProcessingStatus.PROCESSING);
+            inbox.setRetryCount(retryCount(inbox) + 1);
+            inbox.setLeaseExpiresAt(leaseExpiresAt);
+        });
+        return inboxes;
+    }
+
+    public void markReplayed(Inbox inbox) {
+        messageBoxMetrics.inboxRecovered();
+        // Keyed records stay as SUCCESS so redeliveries are still recognised
+        if (Util.isNull(inbox.getIdempotencyKey())) {
+            inboxRepository.deleteById(inbox.getId());
+            return;
+        }
+        inbox.setStatus(RequestProcessingStatus.SUCCESS);
+        inbox.setReason(null);
+        inbox.setLeaseExpiresAt(null);
+        inboxRepository.save(inbox);
+    }
+
+    public void markReplayFailed(Inbox inbox, String reason) {
+        messageBoxMetrics.inboxFailed(inbox.getServiceName(), true);
+        inbox.setStatus(RequestProcessingStatus.FAILURE);
+        inbox.setReason(reason);
+        inbox.setLeaseExpiresAt(null);
+        inboxRepository.save(inbox);
+    }
+
+    private static int retryCount(Inbox inbox) {
+        return Util.isNull(inbox.getRetryCount()) ? 0 : inbox.getRetryCount();
+    }
+}
@@ -0,0 +1,229 @@
+package com.gr.common.rest.messagebox.service;
+
+import com.gr.common.rest.messagebox.constants.RestMessageStatus;
+import com.gr.common.rest.messagebox.constants.ServiceName;
+import com.gr.common.rest.messagebox.entity.RestMessage;
+import com.gr.common.rest.messagebox.repository.RestMessageRepository;
+import com.gr.common.v2.util.Util;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * The one in-memory view of the pending outbox: counts per source service and status for the backlog gauges, counts
+ * per serviceMethodName so processOutBoxMessagesFirst only goes to the database when the method has something to
+ * deliver, and the ordering keys with pending messages for OrderedOutboxDispatcher. It is moved by captures and
+ * replays of this instance and recounted periodically to pick up what other replicas captured or delivered.
+ * A recount never drops captures it could not see: those made while it ran and write-behind captures still queued
+ * in memory are added on top of the counted rows, so the index errs on the side of a database check.
+ */
+@Slf4j
+@Component
+public class OutboxBacklogIndex {
+
+    private static final RestMessageStatus[] PENDING_STATUSES = {RestMessageStatus.NEW, RestMessageStatus.FAILURE};
+
+    @Autowired
+    private RestMessageRepository restMessageRepository;
+
+    @Value("${rest.messagebox.backlog.refresh-interval-millis:30000}")
+    private long refreshIntervalMillis;
+
+    private final Map<ServiceName, Map<RestMessageStatus, Backlog>> byServiceAndStatus = new EnumMap<>(ServiceName.class);
+
+    // Messages without an ordering key
+    private final Map<String, Backlog> byMethod = new ConcurrentHashMap<>();
+
+    // Ordering keys with pending messages per serviceMethodName
+    private final Map<String, Set<String>> orderingKeys = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService refresher;
+
+    {
+        for (ServiceName serviceName : ServiceName.values()) {
+            Map<RestMessageStatus, Backlog> byStatus = new EnumMap<>(RestMessageStatus.class);
+            for (RestMessageStatus status : PENDING_STATUSES) {
+                byStatus.put(status, new Backlog());
+            }
+            byServiceAndStatus.put(serviceName, byStatus);
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        if (refreshIntervalMillis > 0) {
+            refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "outbox-backlog-refresh");
+                thread.setDaemon(true);
+                return thread;
+            });
+            refresher.scheduleWithFixedDelay(this::seed, refreshIntervalMillis, refreshIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (Util.isNotNull(refresher)) {
+            refresher.shutdownNow();
+        }
+    }
+
+    @EventListener(ApplicationReadyEvent.class)
+    public synchronized void seed() {
+        try {
+            byServiceAndStatus.values().forEach(byStatus -> byStatus.values().forEach(Backlog::recountStarted));
+            Map<Backlog, Long> counted = new HashMap<>();
+            for (Object[] row : restMessageRepository.countPendingOutboxMessagesByServiceAndStatus(RestMessageService.MAX_RETRY_COUNT)) {
+                counted.merge(backlog((ServiceName) row[0], (RestMessageStatus) row[1]), (Long) row[2], Long::sum);
+            }
+            byServiceAndStatus.values().forEach(byStatus -> byStatus.values().forEach(backlog -> backlog.recounted(counted.getOrDefault(backlog, 0L))));
+
+            byMethod.values().forEach(Backlog::recountStarted);
+            counted.clear();
+            for (Object[] row : restMessageRepository.countPendingOutboxMessagesByMethod(RestMessageService.MAX_RETRY_COUNT)) {
+                counted.put(methodBacklog((String) row[0]), (Long) row[1]);
+            }
+            byMethod.values().forEach(backlog -> backlog.recounted(counted.getOrDefault(backlog, 0L)));
+        } catch (Exception e) {
+            log.warn("could not count pending outbox messages: {}", e.getMessage());
+        }
+        seedOrderingKeys();
+    }
+
+    // Only adds keys, a key leaves the index when OrderedOutboxDispatcher finds nothing left to claim for it
+    public void seedOrderingKeys() {
+        try {
+            for (Object[] row : restMessageRepository.findPendingOrderingKeys(RestMessageService.MAX_RETRY_COUNT)) {
+                orderingKeyPending((String) row[0], (String) row[1]);
+            }
+        } catch (Exception e) {
+            log.warn("could not load pending ordering keys: {}", e.getMessage());
+        }
+    }
+
+    public boolean hasBacklog(String methodName) {
+        Backlog backlog = byMethod.get(key(methodName));
+        return Util.isNotNull(backlog) && backlog.pending.get() > 0;
+    }
+
+    public boolean hasBacklog(String methodName, String orderingKey) {
+        Set<String> keys = orderingKeys.get(key(methodName));
+        return Util.isNotNull(keys) && keys.contains(orderingKey);
+    }
+
+    public long pending(ServiceName serviceName, RestMessageStatus status) {
+        Backlog backlog = backlog(serviceName, status);
+        return Util.isNull(backlog) ? 0 : backlog.pending.get();
+    }
+
+    public void forEachOrderingKey(BiConsumer<String, String> consumer) {
+        orderingKeys.forEach((methodName, keys) -> keys.forEach(orderingKey -> consumer.accept(methodName, orderingKey)));
+    }
+
+    public void orderingKeyPending(String methodName, String orderingKey) {
+        orderingKeys.computeIfAbsent(key(methodName), ignored -> ConcurrentHashMap.newKeySet()).add(orderingKey);
+    }
+
+    public void orderingKeyDrained(String methodName, String orderingKey) {
+        Set<String> keys = orderingKeys.get(key(methodName));
+        if (Util.isNotNull(keys)) {
+            keys.remove(orderingKey);
+        }
+    }
+
+    public void captured(RestMessage restMessage) {
+        backlog(restMessage.getSourceService(), restMessage.getStatus()).captured();
+        if (Util.isNull(restMessage.getOrderingKey())) {
+            methodBacklog(restMessage.getServiceMethodName()).captured();
+        } else {
+            orderingKeyPending(restMessage.getServiceMethodName(), restMessage.getOrderingKey());
+        }
+    }
+
+    // Write-behind captures between being queued and being written, a recount cannot see them yet
+    public void queued(RestMessage restMessage) {
+        backlog(restMessage.getSourceService(), restMessage.getStatus()).unflushed.incrementAndGet();
+        if (Util.isNull(restMessage.getOrderingKey())) {
+            methodBacklog(restMessage.getServiceMethodName()).unflushed.incrementAndGet();
+        }
+    }
+
+    public void flushed(RestMessage restMessage) {
+        backlog(restMessage.getSourceService(), restMessage.getStatus()).unflushed.decrementAndGet();
+        if (Util.isNull(restMessage.getOrderingKey())) {
+            methodBacklog(restMessage.getServiceMethodName()).unflushed.decrementAndGet();
+        }
+    }
+
+    // previousStatus is the status the message had while it was counted as pending. A replayed message stops being
+    // pending once it is delivered or has used up its retries.
+    public void replayed(RestMessage restMessage, RestMessageStatus previousStatus) {
+        boolean done = RestMessageStatus.SUCCESS.equals(restMessage.getStatus())
+                || (Util.isNotNull(restMessage.getRetryCount()) && restMessage.getRetryCount() > RestMessageService.MAX_RETRY_COUNT);
+        backlog(restMessage.getSourceService(), previousStatus).removed();
+        if (!done) {
+            backlog(restMessage.getSourceService(), restMessage.getStatus()).pending.incrementAndGet();
+        } else if (Util.isNull(restMessage.getOrderingKey())) {
+            methodBacklog(restMessage.getServiceMethodName()).removed();
+        }
+    }
+
+    private Backlog backlog(ServiceName serviceName, RestMessageStatus status) {
+        Backlog backlog = byServiceAndStatus.get(Util.isNull(serviceName) ? ServiceName.EXTERNAL : serviceName).get(status);
+        // Statuses that are not pending are counted nowhere
+        return Util.isNull(backlog) ? Backlog.NONE : backlog;
+    }
+
+    private Backlog methodBacklog(String methodName) {
+        return byMethod.computeIfAbsent(key(methodName), ignored -> new Backlog());
+    }
+
+    // ConcurrentHashMap takes no null keys, messages captured without a method name share one entry
+    private static String key(String methodName) {
+        return Util.isNull(methodName) ? "" : methodName;
+    }
+
+    private static final class Backlog {
+        private static final Backlog NONE = new Backlog();
+
+        private final AtomicLong pending = new AtomicLong();
+
+        // Captures since the running recount started, its query may have missed them
+        private final AtomicLong recentCaptures = new AtomicLong();
+
+        private final AtomicLong unflushed = new AtomicLong();
+
+        private void captured() {
+            pending.incrementAndGet();
+            recentCaptures.incrementAndGet();
+        }
+
+        private void removed() {
+            pending.updateAndGet(count -> Math.max(0, count - 1));
+        }
+
+        private void recountStarted() {
+            recentCaptures.set(0);
+        }
+
+        private void recounted(long counted) {
+            pending.set(counted + recentCaptures.get() + Math.max(0, unflushed.get()));
+        }
+    }
+}
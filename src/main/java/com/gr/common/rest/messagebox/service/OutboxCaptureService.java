@@ -0,0 +1,81 @@
+package com.gr.common.rest.messagebox.service;
+
+import com.gr.common.rest.messagebox.constants.CaptureMode;
+import com.gr.common.rest.messagebox.dedup.ContentHash;
+import com.gr.common.rest.messagebox.dedup.OutboxDedupFilter;
+import com.gr.common.rest.messagebox.entity.RestMessage;
+import com.gr.common.rest.messagebox.metrics.MessageBoxMetrics;
+import com.gr.common.v2.util.Util;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Entry point used by the aspects to record a failed outgoing call in the outbox. Writes go straight to the
+ * database unless rest.messagebox.capture.mode is WRITE_BEHIND, in which case they are group-committed.
+ */
+@Slf4j
+@Service
+public class OutboxCaptureService {
+
+    @Autowired
+    private RestMessageService restMessageService;
+
+    @Autowired(required = false)
+    private OutboxWriteBehindBuffer outboxWriteBehindBuffer;
+
+    @Value("${rest.messagebox.capture.mode:SYNC}")
+    private CaptureMode captureMode;
+
+    @Autowired
+    private OutboxDedupFilter outboxDedupFilter;
+
+    @Autowired
+    private MessageBoxMetrics messageBoxMetrics;
+
+    @Autowired
+    private RetryBackoff retryBackoff;
+
+    @Autowired
+    private OutboxBacklogIndex outboxBacklogIndex;
+
+    public void capture(RestMessage restMessage) {
+        Timer.Sample sample = messageBoxMetrics.startTimer();
+        if (outboxDedupFilter.isEnabled() && Util.isNull(restMessage.getContentHash()) && Util.isNotNull(restMessage.getContent())) {
+            restMessage.setContentHash(ContentHash.of(restMessage.getContent()).toHex());
+        }
+        if (!outboxDedupFilter.recordIfNew(restMessage.getServiceMethodName(), restMessage.getContentHash())) {
+            // Same payload already waiting in the outbox for this method, it will be replayed once
+            log.info("skipping duplicate outbox message for {}, hash {}", restMessage.getServiceMethodName(), restMessage.getContentHash());
+            messageBoxMetrics.outboxDuplicate(restMessage.getSourceService());
+            return;
+        }
+        if (Util.isNull(restMessage.getNextAttemptAt())) {
+            restMessage.setNextAttemptAt(retryBackoff.nextAttemptAt(restMessage));
+        }
+
+        try {
+            if (CaptureMode.WRITE_BEHIND.equals(captureMode) && Util.isNotNull(outboxWriteBehindBuffer)) {
+                outboxWriteBehindBuffer.submit(restMessage).whenComplete((ignored, error) -> {
+                    if (Util.isNotNull(error)) {
+                        forget(restMessage);
+                    }
+                });
+            } else {
+                restMessageService.saveRestMessage(restMessage);
+            }
+        } catch (RuntimeException e) {
+            forget(restMessage);
+            throw e;
+        }
+        outboxBacklogIndex.captured(restMessage);
+        messageBoxMetrics.outboxCaptured(restMessage, sample);
+    }
+
+    // The message was not saved, an identical capture retried within the dedup ttl must not be taken for a duplicate
+    private void forget(RestMessage restMessage) {
+        outboxDedupFilter.forget(restMessage.getServiceMethodName(), restMessage.getContentHash());
+    }
+}
@@ -0,0 +1,123 @@
+package com.gr.common.rest.messagebox.service;
+
+import com.gr.common.rest.messagebox.constants.RetentionAction;
+import com.gr.common.rest.messagebox.metrics.MessageBoxMetrics;
+import com.gr.common.v2.util.Util;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongFunction;
+
+/**
+ * Keeps rest_message sized to in-flight work. Delivered messages older than the TTL are deleted or archived, and
+ * messages past the retry limit are moved to rest_message_archive. Both run in keyset batches of one short
+ * transaction each, with a pause in between so the purge never holds locks or log space for long.
+ */
+@Slf4j
+@Service
+public class OutboxRetentionService {
+
+    private static final String DELIVERED = "delivered";
+
+    private static final String EXHAUSTED = "exhausted";
+
+    @Autowired
+    private RestMessageService restMessageService;
+
+    @Autowired
+    private MessageBoxMetrics messageBoxMetrics;
+
+    @Value("${rest.messagebox.retention.enabled:false}")
+    private boolean enabled;
+
+    @Value("${rest.messagebox.retention.interval-millis:3600000}")
+    private long intervalMillis;
+
+    @Value("${rest.messagebox.retention.batch-size:500}")
+    private int batchSize;
+
+    @Value("${rest.messagebox.retention.pause-millis:200}")
+    private long pauseMillis;
+
+    @Value("${rest.messagebox.retention.delivered.ttl-hours:168}")
+    private long deliveredTtlHours;
+
+    @Value("${rest.messagebox.retention.delivered.action:DELETE}")
+    private RetentionAction deliveredAction;
+
+    @Value("${rest.messagebox.retention.exhausted.archive:true}")
+    private boolean archiveExhausted;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        if (!enabled) {
+            return;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "outbox-retention");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.scheduleWithFixedDelay(this::purgeSafely, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+        log.info("outbox retention enabled every {}ms, delivered messages {} after {}h, batch size {}",
+                intervalMillis, deliveredAction, deliveredTtlHours, batchSize);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (Util.isNotNull(scheduler)) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    private void purgeSafely() {
+        try {
+            purge();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.error("outbox retention failed: {}", e.getMessage(), e);
+        }
+    }
+
+    public void purge() throws InterruptedException {
+        LocalDateTime cutoff = LocalDateTime.now().minusHours(deliveredTtlHours);
+        int delivered = RetentionAction.ARCHIVE.equals(deliveredAction)
+                ? run(DELIVERED, RetentionAction.ARCHIVE, lastId -> restMessageService.archiveDeliveredBatch(lastId, cutoff, batchSize))
+                : run(DELIVERED, RetentionAction.DELETE, lastId -> restMessageService.deleteDeliveredBatch(lastId, cutoff, batchSize));
+        int exhausted = archiveExhausted
+                ? run(EXHAUSTED, RetentionAction.ARCHIVE, lastId -> restMessageService.archiveExhaustedBatch(lastId, batchSize))
+                : 0;
+        if (delivered > 0 || exhausted > 0) {
+            log.info("outbox retention removed {} delivered and archived {} exhausted messages", delivered, exhausted);
+        }
+    }
+
+    // Keyset loop over one kind of message, a short batch means the end of the candidates was reached
+    private int run(String kind, RetentionAction action, LongFunction<List<Long>> batch) throws InterruptedException {
+        long lastId = 0L;
+        int removed = 0;
+        List<Long> ids;
+        while (!(ids = batch.apply(lastId)).isEmpty()) {
+            lastId = ids.get(ids.size() - 1);
+            removed += ids.size();
+            messageBoxMetrics.retention(kind, action, ids.size());
+            if (ids.size() < batchSize) {
+                break;
+            }
+            TimeUnit.MILLISECONDS.sleep(pauseMillis);
+        }
+        return removed;
+    }
+}
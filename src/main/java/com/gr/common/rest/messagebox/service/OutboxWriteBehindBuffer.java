@@ -0,0 +1,184 @@
+package com.gr.common.rest.messagebox.service;
+
+import com.gr.common.rest.messagebox.constants.CaptureDurability;
+import com.gr.common.rest.messagebox.entity.RestMessage;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Group-commit buffer for captured outbox messages. Captures are queued in memory and written by a single
+ * flusher thread in JDBC batches, one transaction per batch, instead of one transaction per failed call.
+ * The flusher wakes on the first queued capture, captures arriving while a batch is written form the next one.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "rest.messagebox.capture.mode", havingValue = "WRITE_BEHIND")
+public class OutboxWriteBehindBuffer {
+
+    @Autowired
+    private RestMessageService restMessageService;
+
+    @Autowired
+    private OutboxBacklogIndex outboxBacklogIndex;
+
+    @Value("${rest.messagebox.capture.queue-capacity:10000}")
+    private int queueCapacity;
+
+    @Value("${rest.messagebox.capture.batch-size:100}")
+    private int batchSize;
+
+    @Value("${rest.messagebox.capture.flush-interval-millis:50}")
+    private long flushIntervalMillis;
+
+    @Value("${rest.messagebox.capture.flush-timeout-millis:5000}")
+    private long flushTimeoutMillis;
+
+    @Value("${rest.messagebox.capture.durability:BLOCK_UNTIL_FLUSHED}")
+    private CaptureDurability durability;
+
+    private BlockingQueue<PendingCapture> queue;
+
+    private ExecutorService flusher;
+
+    private volatile boolean running = true;
+
+    @PostConstruct
+    public void init() {
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        flusher = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "outbox-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.execute(this::run);
+        log.info("outbox write-behind capture enabled, batchSize {}, flushInterval {}ms, durability {}", batchSize, flushIntervalMillis, durability);
+    }
+
+    // Fails when the message could not be written in BLOCK_UNTIL_FLUSHED mode, the caller must not take it as captured.
+    // The returned future completes once the message is written, exceptionally when it never will be.
+    public CompletableFuture<Void> submit(RestMessage restMessage) {
+        PendingCapture pendingCapture = new PendingCapture(restMessage);
+        outboxBacklogIndex.queued(restMessage);
+        pendingCapture.flushed.whenComplete((ignored, error) -> outboxBacklogIndex.flushed(restMessage));
+        if (!queue.offer(pendingCapture)) {
+            pendingCapture.flushed.complete(null);
+            // Buffer is full, degrade to a synchronous write rather than dropping the message
+            log.warn("outbox write-behind buffer full, saving message synchronously");
+            restMessageService.saveRestMessage(restMessage);
+            return pendingCapture.flushed;
+        }
+        if (CaptureDurability.BLOCK_UNTIL_FLUSHED.equals(durability)) {
+            awaitFlush(pendingCapture);
+        }
+        return pendingCapture.flushed;
+    }
+
+    private void awaitFlush(PendingCapture pendingCapture) {
+        try {
+            pendingCapture.flushed.get(flushTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            // Still queued, the flusher writes it
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("outbox message could not be saved: " + e.getCause().getMessage(), e.getCause());
+        } catch (TimeoutException e) {
+            if (!queue.remove(pendingCapture)) {
+                // The flusher already took it, the batch write is still running
+                throw new IllegalStateException("outbox message not saved within " + flushTimeoutMillis + "ms");
+            }
+            log.warn("outbox message not flushed within {}ms, saving it synchronously", flushTimeoutMillis);
+            writeOne(pendingCapture);
+            awaitFlush(pendingCapture);
+        }
+    }
+
+    private void run() {
+        List<PendingCapture> batch = new ArrayList<>(batchSize);
+        while (running) {
+            try {
+                PendingCapture first = queue.poll(flushIntervalMillis, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, batchSize - 1);
+                write(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("outbox write-behind flush failed: {}", e.getMessage(), e);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void flush() {
+        List<PendingCapture> batch = new ArrayList<>(batchSize);
+        while (queue.drainTo(batch, batchSize) > 0) {
+            write(batch);
+            batch.clear();
+        }
+    }
+
+    private void write(List<PendingCapture> batch) {
+        List<RestMessage> restMessages = new ArrayList<>(batch.size());
+        batch.forEach(pendingCapture -> restMessages.add(pendingCapture.restMessage));
+        try {
+            restMessageService.saveRestMessages(restMessages);
+            batch.forEach(pendingCapture -> pendingCapture.flushed.complete(null));
+        } catch (Exception e) {
+            // One bad row must not lose the whole batch, retry the rows one by one
+            log.error("outbox batch of {} could not be saved, saving one by one: {}", batch.size(), e.getMessage());
+            batch.forEach(this::writeOne);
+        }
+    }
+
+    private void writeOne(PendingCapture pendingCapture) {
+        try {
+            pendingCapture.restMessage.setId(null);
+            restMessageService.saveRestMessage(pendingCapture.restMessage);
+            pendingCapture.flushed.complete(null);
+        } catch (Exception e) {
+            pendingCapture.flushed.completeExceptionally(e);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        running = false;
+        flusher.shutdown();
+        try {
+            flusher.awaitTermination(flushTimeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    private static final class PendingCapture {
+        private final RestMessage restMessage;
+        private final CompletableFuture<Void> flushed = new CompletableFuture<>();
+
+        private PendingCapture(RestMessage restMessage) {
+            this.restMessage = restMessage;
+        }
+    }
+}
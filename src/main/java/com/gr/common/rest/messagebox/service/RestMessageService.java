@@ -1,42 +1,273 @@
 package com.gr.common.rest.messagebox.service;
 
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.hibernate.Session;
 
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Propagation;
 import org.springframework.transaction.annotation.Transactional;
 
+import com.gr.common.rest.messagebox.constants.RestMessageStatus;
+import com.gr.common.rest.messagebox.constants.ServiceName;
 import com.gr.common.rest.messagebox.entity.RestMessage;
+import com.gr.common.rest.messagebox.entity.RestMessageArchive;
 import com.gr.common.rest.messagebox.repository.RestMessageRepository;
 
 @Service
 public class RestMessageService {
 
+	// Messages retried more often than this are no longer picked up for replay
+	public static final int MAX_RETRY_COUNT = 3;
+
+	private static final RestMessageStatus[] PENDING_STATUSES = {RestMessageStatus.NEW, RestMessageStatus.FAILURE};
 
 	@Autowired
 	RestMessageRepository restMessageRepository;
 
+	@PersistenceContext
+	private EntityManager entityManager;
+
+	@Value("${rest.messagebox.capture.batch-size:100}")
+	private int jdbcBatchSize;
+
+	@Value("${rest.messagebox.lease.owner:}")
+	private String leaseOwner;
+
+	@Value("${rest.messagebox.lease.duration-seconds:300}")
+	private long leaseDurationSeconds;
+
+	@PostConstruct
+	public void init() {
+		if (leaseOwner == null || leaseOwner.isEmpty()) {
+			leaseOwner = hostName() + "-" + UUID.randomUUID();
+		}
+	}
+
 	@Transactional(propagation = Propagation.REQUIRES_NEW)
 	public Long saveRestMessage(RestMessage restMessage) {
 		return restMessageRepository.save(restMessage).getId();
 	}
 
+	// Writes a message in the caller's transaction, leased to this instance until it has been sent once
+	@Transactional
+	public Long enlistRestMessage(RestMessage restMessage) {
+		lease(Collections.singletonList(restMessage), LocalDateTime.now());
+		return restMessageRepository.save(restMessage).getId();
+	}
+
+	// Saves a group of messages in one transaction, sent to the database as JDBC batches
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	public void saveRestMessages(List<RestMessage> restMessages) {
+		entityManager.unwrap(Session.class).setJdbcBatchSize(jdbcBatchSize);
+		restMessageRepository.saveAll(restMessages);
+	}
+
 
 	public Optional<RestMessage> findById(Long id) {
 		return restMessageRepository.findById(id);
 	}
 
 	public List<RestMessage> getPendingOutboxMessages() {
-		return restMessageRepository.findInboxMessagesThatShouldBeProcessAgain(3);
+		return restMessageRepository.findInboxMessagesThatShouldBeProcessAgain(MAX_RETRY_COUNT);
 	}
 
 	public List<RestMessage> getPendingOutboxMessages(String methodName) {
-		return restMessageRepository.findInboxMessagesThatShouldBeProcessAgain(methodName,3);
+		return restMessageRepository.findInboxMessagesThatShouldBeProcessAgain(methodName, MAX_RETRY_COUNT);
+	}
+
+	public List<RestMessage> getPendingOutboxMessages(Long afterId, int chunkSize) {
+		return pendingChunk(status -> restMessageRepository.findPendingOutboxMessagesAfter(status, afterId, MAX_RETRY_COUNT, PageRequest.of(0, chunkSize)), chunkSize);
+	}
+
+	public List<RestMessage> getPendingOutboxMessages(String methodName, Long afterId, int chunkSize) {
+		return pendingChunk(status -> restMessageRepository.findPendingOutboxMessagesAfter(status, methodName, afterId, MAX_RETRY_COUNT, PageRequest.of(0, chunkSize)), chunkSize);
+	}
+
+	// Claims a chunk of pending messages for this replica. Rows locked by another replica are skipped, and rows
+	// leased by a replica that died become claimable again once their lease expires.
+	@Transactional
+	public List<RestMessage> claimPendingOutboxMessages(Long afterId, int chunkSize) {
+		LocalDateTime now = LocalDateTime.now();
+		return lease(pendingChunk(status -> restMessageRepository.findClaimableOutboxMessagesAfter(status, afterId, MAX_RETRY_COUNT, now, PageRequest.of(0, chunkSize)), chunkSize), now);
+	}
+
+	@Transactional
+	public List<RestMessage> claimPendingOutboxMessages(String methodName, Long afterId, int chunkSize) {
+		LocalDateTime now = LocalDateTime.now();
+		return lease(pendingChunk(status -> restMessageRepository.findClaimableOutboxMessagesAfter(status, methodName, afterId, MAX_RETRY_COUNT, now, PageRequest.of(0, chunkSize)), chunkSize), now);
+	}
+
+	// Earliest backoff of the messages claimPendingOutboxMessages(afterId, chunkSize) skipped as not yet due, null if none
+	public LocalDateTime nextOutboxAttemptAt() {
+		LocalDateTime now = LocalDateTime.now();
+		LocalDateTime next = null;
+		for (RestMessageStatus status : PENDING_STATUSES) {
+			LocalDateTime nextOfStatus = restMessageRepository.findNextOutboxAttemptAt(status, MAX_RETRY_COUNT, now);
+			if (next == null || (nextOfStatus != null && nextOfStatus.isBefore(next))) {
+				next = nextOfStatus;
+			}
+		}
+		return next;
+	}
+
+	// Claims a chunk for the background relay of one source service, see OutboxRelayScheduler
+	@Transactional
+	public List<RestMessage> claimRelayOutboxMessages(ServiceName sourceService, Long afterId, int maxSchedulerRetryCount, int chunkSize) {
+		LocalDateTime now = LocalDateTime.now();
+		return lease(pendingChunk(status -> restMessageRepository.findClaimableOutboxMessagesForRelayAfter(status, sourceService, afterId, MAX_RETRY_COUNT, maxSchedulerRetryCount, now, PageRequest.of(0, chunkSize)), chunkSize), now);
+	}
+
+	// Claims the next messages of one ordering key, up to the first one another replica holds a lease on. Fails when
+	// that is the very first one, the other replica is delivering the key.
+	@Transactional
+	public List<RestMessage> claimOrderedOutboxMessages(String methodName, String orderingKey, Long afterId, int chunkSize) {
+		LocalDateTime now = LocalDateTime.now();
+		List<RestMessage> restMessages = restMessageRepository.findOrderedOutboxMessagesAfter(methodName, orderingKey, afterId, MAX_RETRY_COUNT, PageRequest.of(0, chunkSize));
+		for (int i = 0; i < restMessages.size(); i++) {
+			RestMessage restMessage = restMessages.get(i);
+			if (restMessage.getLeaseExpiresAt() != null && restMessage.getLeaseExpiresAt().isAfter(now) && !leaseOwner.equals(restMessage.getLeaseOwner())) {
+				if (i == 0) {
+					throw new IllegalStateException("outbox message " + restMessage.getId() + " is leased by " + restMessage.getLeaseOwner());
+				}
+				restMessages = new ArrayList<>(restMessages.subList(0, i));
+				break;
+			}
+		}
+		return lease(restMessages, now);
+	}
+
+	// Hands claimed messages back without attempting them
+	@Transactional
+	public void releaseLeases(List<RestMessage> restMessages) {
+		saveLeasedRestMessages(restMessages);
+	}
+
+	// Writes claimed messages back with their lease released and returns the ones written. A message whose lease
+	// expired and was claimed by another replica is left alone, this replica's copy of it is stale.
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	public List<RestMessage> saveLeasedRestMessages(List<RestMessage> restMessages) {
+		if (restMessages.isEmpty()) {
+			return restMessages;
+		}
+		List<Long> ids = restMessages.stream().map(RestMessage::getId).collect(Collectors.toList());
+		Set<Long> held = new HashSet<>();
+		restMessageRepository.findLeasedBy(ids, leaseOwner).forEach(restMessage -> held.add(restMessage.getId()));
+		List<RestMessage> leased = new ArrayList<>(held.size());
+		for (RestMessage restMessage : restMessages) {
+			if (held.contains(restMessage.getId())) {
+				releaseLease(restMessage);
+				leased.add(restMessage);
+			}
+		}
+		entityManager.unwrap(Session.class).setJdbcBatchSize(jdbcBatchSize);
+		restMessageRepository.saveAll(leased);
+		return leased;
+	}
+
+	public void releaseLease(RestMessage restMessage) {
+		restMessage.setLeaseOwner(null);
+		restMessage.setLeaseExpiresAt(null);
+	}
+
+	// Reads the next chunk of each pending status and keeps the lowest ids of both. Rows beyond the chunk that were
+	// locked by a claim are not leased, their locks end with the transaction.
+	private static List<RestMessage> pendingChunk(Function<RestMessageStatus, List<RestMessage>> chunkOf, int chunkSize) {
+		List<RestMessage> restMessages = new ArrayList<>();
+		for (RestMessageStatus status : PENDING_STATUSES) {
+			restMessages.addAll(chunkOf.apply(status));
+		}
+		restMessages.sort(Comparator.comparing(RestMessage::getId));
+		return restMessages.size() > chunkSize ? new ArrayList<>(restMessages.subList(0, chunkSize)) : restMessages;
+	}
+
+	private List<RestMessage> lease(List<RestMessage> restMessages, LocalDateTime now) {
+		LocalDateTime leaseExpiresAt = now.plusSeconds(leaseDurationSeconds);
+		restMessages.forEach(restMessage -> {
+			restMessage.setLeaseOwner(leaseOwner);
+			restMessage.setLeaseExpiresAt(leaseExpiresAt);
+		});
+		return restMessages;
+	}
+
+	// Retention batches, each in its own short transaction. They return the ids they removed from rest_message so
+	// the caller can continue the keyset after the last one.
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	public List<Long> deleteDeliveredBatch(Long afterId, LocalDateTime cutoff, int batchSize) {
+		List<Long> ids = restMessageRepository.findDeliveredIdsAfter(afterId, cutoff, PageRequest.of(0, batchSize));
+		if (!ids.isEmpty()) {
+			restMessageRepository.deleteByIds(ids);
+		}
+		return ids;
+	}
+
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	public List<Long> archiveDeliveredBatch(Long afterId, LocalDateTime cutoff, int batchSize) {
+		return archive(restMessageRepository.findDeliveredAfter(afterId, cutoff, PageRequest.of(0, batchSize)));
+	}
+
+	@Transactional(propagation = Propagation.REQUIRES_NEW)
+	public List<Long> archiveExhaustedBatch(Long afterId, int batchSize) {
+		return archive(restMessageRepository.findExhaustedOutboxMessagesAfter(afterId, MAX_RETRY_COUNT, PageRequest.of(0, batchSize)));
+	}
+
+	private List<Long> archive(List<RestMessage> restMessages) {
+		if (restMessages.isEmpty()) {
+			return Collections.emptyList();
+		}
+		LocalDateTime now = LocalDateTime.now();
+		List<Long> ids = new ArrayList<>(restMessages.size());
+		entityManager.unwrap(Session.class).setJdbcBatchSize(jdbcBatchSize);
+		for (RestMessage restMessage : restMessages) {
+			// persist rather than a repository save, which would select each assigned id before inserting it
+			entityManager.persist(RestMessageArchive.of(restMessage, now));
+			ids.add(restMessage.getId());
+		}
+		restMessageRepository.deleteByIds(ids);
+		return ids;
+	}
+
+	private static String hostName() {
+		try {
+			return InetAddress.getLocalHost().getHostName();
+		} catch (UnknownHostException e) {
+			return "unknown";
+		}
 	}
 
     public Optional<RestMessage> getRestMessage(String contentHash, String methodName) {
-		 return restMessageRepository.getExistingMessageBasedOnContentHash(contentHash, methodName,3);
+		 return restMessageRepository.getExistingMessageBasedOnContentHash(contentHash, methodName, MAX_RETRY_COUNT, PageRequest.of(0, 1)).stream().findFirst();
     }
+
+	public boolean hasPendingRestMessage(String contentHash, String methodName) {
+		return !restMessageRepository.findPendingIdsByContentHash(contentHash, methodName, MAX_RETRY_COUNT, PageRequest.of(0, 1)).isEmpty();
+	}
+
+	// serviceMethodName and contentHash pairs
+	public List<Object[]> getPendingContentHashes() {
+		return restMessageRepository.findPendingContentHashes(MAX_RETRY_COUNT);
+	}
+
+	public List<String> getPendingContentHashes(String methodName) {
+		return restMessageRepository.findPendingContentHashes(methodName, MAX_RETRY_COUNT);
+	}
 }
@@ -0,0 +1,46 @@
+package com.gr.common.rest.messagebox.service;
+
+import com.gr.common.rest.messagebox.entity.RestMessage;
+import com.gr.common.v2.util.Util;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Exponential backoff with jitter for outbox messages. The delay grows with every failed attempt, inline and
+ * relayed ones alike, and is spread by the jitter so messages that failed together are not retried together.
+ */
+@Component
+public class RetryBackoff {
+
+    @Value("${rest.messagebox.backoff.initial-millis:1000}")
+    private long initialMillis;
+
+    @Value("${rest.messagebox.backoff.multiplier:2.0}")
+    private double multiplier;
+
+    @Value("${rest.messagebox.backoff.max-millis:600000}")
+    private long maxMillis;
+
+    @Value("${rest.messagebox.backoff.jitter:0.2}")
+    private double jitter;
+
+    // When the message becomes due again, counting the failed call that captured it as the first attempt
+    public LocalDateTime nextAttemptAt(RestMessage restMessage) {
+        int attempts = 1 + count(restMessage.getRetryCount()) + count(restMessage.getSchedulerRetryCount());
+        return LocalDateTime.now().plus(delayMillis(attempts), ChronoUnit.MILLIS);
+    }
+
+    public long delayMillis(int attempts) {
+        double delay = Math.min(maxMillis, initialMillis * Math.pow(multiplier, Math.max(0, attempts - 1)));
+        double spread = delay * jitter;
+        return (long) Math.max(0, delay - spread + ThreadLocalRandom.current().nextDouble() * 2 * spread);
+    }
+
+    private static int count(Integer count) {
+        return Util.isNull(count) ? 0 : count;
+    }
+}
@@ -0,0 +1,13 @@
+-- Outbox schema changes for services that do not let hibernate manage the schema (PostgreSQL syntax).
+
+-- Pooled sequence used for RestMessage ids, allocation size must match @SequenceGenerator on RestMessage
+CREATE SEQUENCE IF NOT EXISTS rest_message_seq INCREMENT BY 50;
+SELECT setval('rest_message_seq', (SELECT COALESCE(MAX(id), 0) + 1 FROM rest_message));
+
+-- Replica leases taken while replaying
+ALTER TABLE rest_message ADD COLUMN IF NOT EXISTS lease_owner VARCHAR(255);
+ALTER TABLE rest_message ADD COLUMN IF NOT EXISTS lease_expires_at TIMESTAMP;
+
+-- Replay keyset scans, one pending status at a time, and content hash dedup lookups
+CREATE INDEX IF NOT EXISTS idx_rest_message_type_status_id ON rest_message (type, status, id);
+CREATE INDEX IF NOT EXISTS idx_rest_message_method_hash_status ON rest_message (service_method_name, content_hash, status);
@@ -0,0 +1,3 @@
+-- Idempotency keys of @GRInboxPattern requests (PostgreSQL syntax), NULLs do not collide so unkeyed rows are unaffected
+ALTER TABLE inbox ADD COLUMN IF NOT EXISTS idempotency_key VARCHAR(255);
+CREATE UNIQUE INDEX IF NOT EXISTS uk_inbox_idempotency_key ON inbox (idempotency_key);
@@ -0,0 +1,4 @@
+-- Replay of failed inbox records (PostgreSQL syntax)
+ALTER TABLE inbox ADD COLUMN IF NOT EXISTS retry_count INTEGER;
+ALTER TABLE inbox ADD COLUMN IF NOT EXISTS lease_expires_at TIMESTAMP;
+CREATE INDEX IF NOT EXISTS idx_inbox_status_id ON inbox (status, id);
@@ -0,0 +1,29 @@
+-- Retention of delivered and retry-exhausted outbox messages (PostgreSQL syntax)
+CREATE INDEX IF NOT EXISTS idx_rest_message_status_id ON rest_message (status, id);
+
+CREATE TABLE IF NOT EXISTS rest_message_archive (
+    id BIGINT NOT NULL PRIMARY KEY,
+    request_headers_json TEXT,
+    content TEXT,
+    content_type TEXT,
+    create_date_time TIMESTAMP,
+    end_point_url VARCHAR(255) NOT NULL,
+    http_method VARCHAR(255),
+    response TEXT,
+    response_headers_json TEXT,
+    query_parameters TEXT,
+    response_date_time TIMESTAMP,
+    status VARCHAR(255),
+    reponse_status_code INTEGER,
+    response_status_message TEXT,
+    retry_count INTEGER,
+    scheduler_retry_count INTEGER,
+    last_send_date_time TIMESTAMP,
+    response_duration_in_millis BIGINT,
+    source_system VARCHAR(255),
+    source_service VARCHAR(255),
+    service_method_name VARCHAR(255),
+    content_hash VARCHAR(255),
+    type VARCHAR(255),
+    archived_date_time TIMESTAMP
+);
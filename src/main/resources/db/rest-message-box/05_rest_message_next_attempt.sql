@@ -0,0 +1,4 @@
+-- Per message backoff of outbox replays (PostgreSQL syntax), pending messages are due right away
+ALTER TABLE rest_message ADD COLUMN IF NOT EXISTS next_attempt_at TIMESTAMP;
+UPDATE rest_message SET next_attempt_at = now() WHERE next_attempt_at IS NULL AND type = 'OUTBOX' AND status IN ('NEW', 'FAILURE');
+CREATE INDEX IF NOT EXISTS idx_rest_message_status_next_attempt ON rest_message (status, next_attempt_at);
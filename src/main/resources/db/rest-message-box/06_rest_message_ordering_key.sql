@@ -0,0 +1,4 @@
+-- Per key ordered delivery of outbox messages (PostgreSQL syntax)
+ALTER TABLE rest_message ADD COLUMN IF NOT EXISTS ordering_key VARCHAR(255);
+ALTER TABLE rest_message_archive ADD COLUMN IF NOT EXISTS ordering_key VARCHAR(255);
+CREATE INDEX IF NOT EXISTS idx_rest_message_method_ordering_key ON rest_message (service_method_name, ordering_key, id);